@@ -1,19 +1,38 @@
 package org.example.CompanionPhotosExample;
 
 import android.app.Service;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.getpebble.android.kit.util.PebbleDictionary;
 
 import org.example.CompanionPhotosExample.helpers.CompanionService;
-import org.example.CompanionPhotosExample.helpers.OutboxManager;
+import org.example.CompanionPhotosExample.helpers.FileSender;
+import org.example.CompanionPhotosExample.helpers.LatencyRecorder;
+import org.example.CompanionPhotosExample.helpers.PngSession;
+import org.example.CompanionPhotosExample.helpers.TransferLog;
 import org.example.CompanionPhotosExample.helpers.SimpleImageEncoder;
+import org.example.CompanionPhotosExample.helpers.WatchProfile;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ExamplePhotoService extends CompanionService {
     static final String TAG = ExamplePhotoService.class.getSimpleName();
@@ -21,19 +40,225 @@ public class ExamplePhotoService extends CompanionService {
 
     final int COMMAND_KEY = 0;
     final int COLOR_KEY = 1;
+    final int COUNT_KEY = 2;
+    final int PHOTO_ID_KEY = 3;
+    final int SESSION_KEY = 4;
+
+    // Describe the watch's display and inbox; see WatchProfile
+    final int SCREEN_WIDTH_KEY = 5;
+    final int SCREEN_HEIGHT_KEY = 6;
+    final int SCREEN_ROUND_KEY = 7;
+    final int INBOX_SIZE_KEY = 8;
 
     final int ID_KEY = 47000;
     final int BYTES_KEY = 47001;
     final int TOTAL_SIZE_KEY = 47002;
     final int OFFSET_KEY = 47003;
 
+    // Sent before a contact sheet image to describe its tiles
+    final int TILE_IDS_KEY = 47010;
+    final int TILE_COLUMNS_KEY = 47011;
+    final int TILE_WIDTH_KEY = 47012;
+    final int TILE_HEIGHT_KEY = 47013;
+
+    // Defines a palette slot for PNG session payloads
+    final int PALETTE_SLOT_KEY = 47020;
+    final int PALETTE_KEY = 47021;
+    final int PALETTE_TRNS_KEY = 47022;
+
     final int RANDOM_PHOTO_COMMAND = 0;
+    final int CONTACT_SHEET_COMMAND = 1;
+    final int PHOTO_BY_ID_COMMAND = 2;
+
+    // Tile IDs are sent as 4 bytes each, which must fit in a single message
+    static final int MAX_TILES = 12;
+
+    // Set on the file ID of low-fidelity previews, so the watch knows
+    // that the full-quality image is still on its way
+    static final int PREVIEW_ID_FLAG = 0x80000000;
+
+    static final String TASK_ENCODE = "encode";
+    static final String TASK_PREFETCH = "prefetch";
+
+    static final int ENCODE_CACHE_SIZE = 256 * 1024;
+
+    /**
+     * If true, send a quarter-resolution preview with fewer colors first,
+     * followed by the full-quality image.
+     */
+    boolean progressive = true;
+
+    /**
+     * Color space for matching colors and dithering. OKLAB gives better
+     * images than RGB at a similar or smaller size.
+     */
+    SimpleImageEncoder.ColorSpace colorSpace = SimpleImageEncoder.ColorSpace.OKLAB;
+
+    // Incremented for each photo request, so that stale work can be dropped
+    // Read by the encoder thread to skip work for stale requests
+    volatile int currentRequest = 0;
+
+    // Loads and encodes full-quality and prefetched images off the event
+    // loop, so that ACKs and new commands aren't held up; results are
+    // posted back to the loop
+    ExecutorService encoder;
+
+    // Time from the command arriving until the first image (preview or full)
+    // has been received by the watch
+    final LatencyRecorder timeToFirstPixel = new LatencyRecorder();
+
+    // Time from the command arriving until the full-quality image has been
+    // received by the watch
+    final LatencyRecorder totalTransferTime = new LatencyRecorder();
+
+    FileSender fileSender;
+
+    // Set if the watch supports session payloads; see PngSession
+    PngSession pngSession;
+
+    PhotoIndex photoIndex;
+
+    // Full-quality images, keyed by watch profile and photo ID
+    final LruCache<String, byte []> encodeCache = new LruCache<String, byte []>(ENCODE_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte [] value) {
+            return value.length;
+        }
+    };
+
+    // Photo already encoded for the next random photo request, by profile key
+    final HashMap<String, Integer> prefetchedIds = new HashMap<String, Integer>();
+
+    /**
+     * If true, log transfers to disk so that they are resumed if the
+     * service is killed in the middle of a transfer.
+     */
+    boolean persistTransfers = true;
+    static final String TRANSFER_LOG_FILE = "transfers.log";
+
+    // Last reported watch profile, so that a photo interrupted by a restart
+    // can be encoded again before the watch sends another command
+    static final String PROFILE_PREFS = "watch_profile";
+    String savedProfileKey;
+
+    // Set on the handler thread once the log is open
+    TransferLog transferLog;
 
     public ExamplePhotoService() {
         // Must set this in constructor
         setAppUUID(PEBBLE_APP_UUID);
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        encoder = Executors.newSingleThreadExecutor();
+
+        fileSender = new FileSender(getOutboxManager(),
+                new FileSender.MessageKeys(ID_KEY, BYTES_KEY, TOTAL_SIZE_KEY, OFFSET_KEY));
+        photoIndex = new PhotoIndex(getContentResolver());
+
+        if (persistTransfers) {
+            // Runs before any messages from the watch are handled
+            post(TASK_SEND, new Runnable() {
+                @Override
+                public void run() {
+                    resumeTransfers();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        encoder.shutdownNow();
+
+        // After the tasks already queued, which may still log progress
+        post(TASK_SEND, new Runnable() {
+            @Override
+            public void run() {
+                if (transferLog != null) transferLog.close();
+            }
+        });
+        super.onDestroy();
+    }
+
+    void resumeTransfers() {
+        try {
+            transferLog = new TransferLog(new File(getFilesDir(), TRANSFER_LOG_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "failed to open transfer log", e);
+            return;
+        }
+        fileSender.setTransferLog(transferLog);
+
+        // The full-quality image is only sent from the preview's callbacks,
+        // which don't survive a restart, so a preview isn't resumed. The
+        // photo is sent again instead, as the newest request.
+        int interruptedPhoto = -1;
+        for (TransferLog.PendingTransfer transfer : transferLog.getPendingTransfers()) {
+            if ((transfer.fileId & PREVIEW_ID_FLAG) != 0) {
+                transferLog.finishTransfer(transfer.transferId);
+                interruptedPhoto = transfer.fileId & ~PREVIEW_ID_FLAG;
+            }
+        }
+
+        WatchProfile profile = loadProfile();
+        if (interruptedPhoto >= 0 && profile != null) {
+            for (TransferLog.PendingTransfer transfer : transferLog.getPendingTransfers()) {
+                transferLog.finishTransfer(transfer.transferId);
+            }
+
+            Log.d(TAG, "sending interrupted photo " + interruptedPhoto + " again");
+            sendPhoto(interruptedPhoto, profile, SystemClock.uptimeMillis());
+            return;
+        }
+
+        fileSender.resumePendingTransfers(null);
+    }
+
+    void saveProfile(WatchProfile profile) {
+        String key = profile.getKey() + "/" + profile.inboxSize;
+        if (key.equals(savedProfileKey)) return;
+
+        getSharedPreferences(PROFILE_PREFS, MODE_PRIVATE).edit()
+                .putInt("width", profile.width)
+                .putInt("height", profile.height)
+                .putBoolean("round", profile.round)
+                .putBoolean("color", profile.color)
+                .putInt("inboxSize", profile.inboxSize)
+                .apply();
+        savedProfileKey = key;
+    }
+
+    /**
+     * @return the profile saved by saveProfile(), or null if there is none
+     */
+    WatchProfile loadProfile() {
+        SharedPreferences prefs = getSharedPreferences(PROFILE_PREFS, MODE_PRIVATE);
+        if (!prefs.contains("width")) return null;
+
+        return new WatchProfile(
+                prefs.getInt("width", WatchProfile.DEFAULT_WIDTH),
+                prefs.getInt("height", WatchProfile.DEFAULT_HEIGHT),
+                prefs.getBoolean("round", false),
+                prefs.getBoolean("color", false),
+                prefs.getInt("inboxSize", 0));
+    }
+
+    @Override
+    protected void clearOutbox() {
+        super.clearOutbox();
+        fileSender.cancelTransfers();
+    }
+
+    @Override
+    protected void onWarmUp() {
+        SimpleImageEncoder.warmUp();
+        photoIndex.load();
+    }
+
     public static class Receiver extends ForwardReceiver {
         @Override
         public Class<? extends Service> getServiceClass() {
@@ -48,16 +273,32 @@ public class ExamplePhotoService extends CompanionService {
         Log.w(TAG, "received command command id " + command);
 
         try {
+            updateSession(data);
+
+            WatchProfile profile = readProfile(data);
+
             switch (command) {
                 case RANDOM_PHOTO_COMMAND:
-                    Long color = data.getUnsignedIntegerAsLong(COLOR_KEY);
-
                     // Abort the current queued message (if any)
                     clearOutbox();
 
                     // Send a random photo
-                    Log.w(TAG, "sending with color=" + color);
-                    sendRandomPhoto(color == 1);
+                    Log.w(TAG, "sending for " + profile.getKey());
+                    sendRandomPhoto(profile);
+                    break;
+                case CONTACT_SHEET_COMMAND:
+                    Long count = data.getUnsignedIntegerAsLong(COUNT_KEY);
+
+                    clearOutbox();
+                    sendContactSheet(count != null ? count.intValue() : MAX_TILES, profile);
+                    break;
+                case PHOTO_BY_ID_COMMAND:
+                    Long photoId = data.getUnsignedIntegerAsLong(PHOTO_ID_KEY);
+
+                    clearOutbox();
+                    if (photoId != null) {
+                        sendPhoto(photoId.intValue(), profile, SystemClock.uptimeMillis());
+                    }
                     break;
                 default:
                     Log.w(TAG, "unrecognized command id " + command);
@@ -69,80 +310,535 @@ public class ExamplePhotoService extends CompanionService {
         }
     }
 
-    void sendRandomPhoto(boolean color) {
+    /**
+     * Read the watch's display and inbox size. Older versions of the watch
+     * app only send COLOR_KEY, so other fields default to a 144x168
+     * rectangular display.
+     */
+    WatchProfile readProfile(PebbleDictionary data) {
+        Long colorValue = data.getUnsignedIntegerAsLong(COLOR_KEY);
+        Long width = data.getUnsignedIntegerAsLong(SCREEN_WIDTH_KEY);
+        Long height = data.getUnsignedIntegerAsLong(SCREEN_HEIGHT_KEY);
+        Long round = data.getUnsignedIntegerAsLong(SCREEN_ROUND_KEY);
+        Long inboxSize = data.getUnsignedIntegerAsLong(INBOX_SIZE_KEY);
+
+        WatchProfile profile = new WatchProfile(
+                width != null ? width.intValue() : WatchProfile.DEFAULT_WIDTH,
+                height != null ? height.intValue() : WatchProfile.DEFAULT_HEIGHT,
+                round != null && round == 1,
+                colorValue != null && colorValue == 1,
+                inboxSize != null ? inboxSize.intValue() : 0);
+
+        fileSender.setChunkSize(profile.getChunkSize());
+        getLinkScheduler().setQuantum(FileSender.getMessageSize(profile.getChunkSize()));
+        saveProfile(profile);
+        return profile;
+    }
+
+    void sendRandomPhoto(WatchProfile profile) {
+        long requestTime = SystemClock.uptimeMillis();
+
+        Integer prefetched = prefetchedIds.remove(profile.getKey());
+        if (prefetched != null) {
+            sendPhoto(prefetched, profile, requestTime);
+            return;
+        }
+
+        int [] ids = queryRandomPhotoIds(1);
+
+        if (ids.length > 0) {
+            sendPhoto(ids[0], profile, requestTime);
+        }
+    }
+
+    /**
+     * Pick and encode the next random photo for this profile, so that the
+     * next request can be answered without waiting for the encoder. The
+     * query, decoding and encoding run on the encoder thread; the result is
+     * dropped if another request arrives first.
+     */
+    void prefetchRandomPhoto(final WatchProfile profile) {
+        final int request = currentRequest;
+        if (prefetchedIds.containsKey(profile.getKey())) return;
+
+        encoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request != currentRequest) return;
+
+                final int [] ids = queryRandomPhotoIds(1);
+                if (ids.length == 0) return;
+
+                Bitmap photo = loadPhoto(ids[0], profile);
+                if (photo == null || request != currentRequest) return;
+
+                final byte [] png = encodePhoto(photo, profile);
+
+                post(TASK_PREFETCH, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != currentRequest) return;
+
+                        encodeCache.put(getCacheKey(ids[0], profile), png);
+                        prefetchedIds.put(profile.getKey(), ids[0]);
+                        Log.d(TAG, "prefetched photo " + ids[0] + " for " + profile.getKey());
+                    }
+                });
+            }
+        });
+    }
+
+    static String getCacheKey(int id, WatchProfile profile) {
+        return profile.getKey() + "/" + id;
+    }
+
+    /**
+     * Pick random photos from the media store, using the photo index
+     * if it has loaded.
+     *
+     * @param count Maximum number of photos
+     * @return IDs of up to count photos
+     */
+    int [] queryRandomPhotoIds(int count) {
+        int [] indexed = photoIndex.getRandomIds(count);
+        if (indexed != null) return indexed;
+
         String where = "";
-        String orderBy = "RANDOM() LIMIT 1";
+        String orderBy = "RANDOM() LIMIT " + count;
+        String [] projection = { MediaStore.Images.ImageColumns._ID };
 
         Cursor cur = MediaStore.Images.Media.query(getContentResolver(),
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, null, where, orderBy);
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection, where, orderBy);
 
-        if (cur != null && cur.moveToFirst()) {
-            try {
-                int id = cur.getInt(cur.getColumnIndex(MediaStore.Images.ImageColumns._ID));
-                Bitmap photo = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), id,
-                        MediaStore.Images.Thumbnails.MINI_KIND, null);
+        if (cur == null) return new int[0];
 
-                if (photo == null) {
-                    return;
-                }
+        try {
+            int [] ids = new int[cur.getCount()];
+            int column = cur.getColumnIndex(MediaStore.Images.ImageColumns._ID);
+            int i = 0;
 
-                Log.d(TAG, "original thumbnail size: " + photo.getWidth() + "x" + photo.getHeight());
+            while (cur.moveToNext() && i < ids.length) {
+                ids[i++] = cur.getInt(column);
+            }
 
-                float ratio = Math.min(144f / photo.getWidth(), 168f / photo.getHeight());
+            return i == ids.length ? ids : Arrays.copyOf(ids, i);
+        } finally {
+            cur.close();
+        }
+    }
 
-                int width = (int) (photo.getWidth() * ratio);
-                int height = (int) (photo.getHeight() * ratio);
+    void sendPhoto(int id, final WatchProfile profile, long requestTime) {
+        final int request = ++currentRequest;
 
-                photo = Bitmap.createScaledBitmap(photo, width, height, false);
-                Log.d(TAG, "resized thumbnail size: " + photo.getWidth() + "x" + photo.getHeight());
+        byte [] cached = encodeCache.get(getCacheKey(id, profile));
+        if (cached != null) {
+            Log.d(TAG, "using cached encoding of photo " + id);
+            sendImage(id, cached, new PhotoTimer(requestTime, true, profile));
+            return;
+        }
 
-                byte [] png = SimpleImageEncoder.encodeBitmapAsPNG(photo, color);
+        Bitmap photo = loadPhoto(id, profile);
 
-                this.sendBytes(id, png, 0);
-            } finally {
-                cur.close();
-            }
+        if (photo == null) {
+            return;
+        }
+
+        if (progressive) {
+            new ProgressiveTransfer(request, requestTime, id, photo, profile).start();
+        } else {
+            byte [] png = encodePhoto(photo, profile);
+            encodeCache.put(getCacheKey(id, profile), png);
+            sendImage(id, png, new PhotoTimer(requestTime, true, profile));
         }
     }
 
     /**
-     * Send an array of bytes to the watch. The data will be split into
-     * multiple messages and sent in sequence after each prior message
-     * is acknowledged.
+     * Load a photo sized for the watch's display. On rectangular displays
+     * the photo is scaled to fit; on round displays it is scaled to cover
+     * the screen and cropped, since the corners won't be shown anyway.
      *
-     * @param id An ID used to identify the data being sent
-     * @param bytes Array of bytes
-     * @param offset Offset into array
+     * @return bitmap, or null if the photo couldn't be loaded
      */
-    void sendBytes(final int id, final byte [] bytes, final int offset) {
-        // Max message size is currently ~124 bytes for companion apps
-        // Use 100 bytes to leave room for a few small fields
-        final int MAX_BYTES = 100;
+    Bitmap loadPhoto(int id, WatchProfile profile) {
+        Bitmap photo = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), id,
+                MediaStore.Images.Thumbnails.MINI_KIND, null);
+
+        if (photo == null) {
+            return null;
+        }
 
-        PebbleDictionary data = new PebbleDictionary();
+        Log.d(TAG, "original thumbnail size: " + photo.getWidth() + "x" + photo.getHeight());
 
-        final int end = Math.min(offset + MAX_BYTES, bytes.length);
+        int [] size = profile.getScaledSize(photo.getWidth(), photo.getHeight());
+        int width = size[0];
+        int height = size[1];
 
-        data.addUint32(ID_KEY, id);
-        data.addBytes(BYTES_KEY, Arrays.copyOfRange(bytes, offset, end));
-        data.addUint16(TOTAL_SIZE_KEY, (short) bytes.length);
-        data.addUint16(OFFSET_KEY, (short) offset);
+        photo = Bitmap.createScaledBitmap(photo, width, height, false);
 
-        Log.d(TAG, "Sending bytes " + offset + "-" + end + " of " + bytes.length);
-        this.sendMessage(data, new OutboxManager.OutgoingMessageCallbacks() {
+        int [] crop = profile.getCropRect(width, height);
+        if (crop[2] < width || crop[3] < height) {
+            photo = Bitmap.createBitmap(photo, crop[0], crop[1], crop[2], crop[3]);
+        }
+
+        Log.d(TAG, "resized thumbnail size: " + photo.getWidth() + "x" + photo.getHeight());
+        return photo;
+    }
+
+    /**
+     * Encode a photo at full quality, skipping pixels outside the display.
+     */
+    byte [] encodePhoto(Bitmap photo, WatchProfile profile) {
+        return SimpleImageEncoder.encodeBitmapAsPNG(photo, profile.color, profile.color ? 16 : 2, false,
+                profile.getVisibleMask(photo.getWidth(), photo.getHeight()), colorSpace);
+    }
+
+    /**
+     * Send a grid of small thumbnails as a single image, preceded by a
+     * message listing the photo ID of each tile so that the watch can
+     * request the full image with PHOTO_BY_ID_COMMAND.
+     *
+     * All tiles share one optimized palette and one deflate stream, which
+     * is much cheaper than sending each thumbnail separately. The sheet is
+     * built on the encoder thread, and dropped if another request arrives
+     * before it's ready.
+     *
+     * @param count Number of tiles requested, up to MAX_TILES
+     * @param profile
+     */
+    void sendContactSheet(final int count, final WatchProfile profile) {
+        final long requestTime = SystemClock.uptimeMillis();
+        final int request = ++currentRequest;
+
+        encoder.execute(new Runnable() {
             @Override
-            public void onSendSuccess() {
-                // Send the next chunk of bytes
-                if (end < bytes.length) {
-                    Log.d(TAG, "Sending next chunk starting from " + end);
-                    sendBytes(id, bytes, end);
+            public void run() {
+                if (request != currentRequest) return;
+
+                final PebbleDictionary sheetInfo = new PebbleDictionary();
+                final byte [] png = buildContactSheet(request, count, profile, sheetInfo);
+                if (png == null) return;
+
+                post(TASK_SEND, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (request != currentRequest) return;
+
+                        sendImage(request, png, sheetInfo, new TransferTimer(requestTime, true, true));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Draw and encode a contact sheet. Runs on the encoder thread.
+     *
+     * @param sheetInfo Filled with the tile IDs and layout
+     * @return encoded sheet, or null if there are no photos or the request is no longer current
+     */
+    byte [] buildContactSheet(int request, int count, WatchProfile profile, PebbleDictionary sheetInfo) {
+        int [] ids = queryRandomPhotoIds(Math.max(1, Math.min(count, MAX_TILES)));
+        if (ids.length == 0) return null;
+
+        // Keep tiles within the area that's visible on round displays
+        int sheetWidth = profile.getSafeWidth();
+        int sheetHeight = profile.getSafeHeight();
+
+        // Pick the number of columns that gives the largest tiles
+        int columns = 1;
+        int bestTileSize = 0;
+        for (int c = 1; c <= ids.length; c++) {
+            int r = (ids.length + c - 1) / c;
+            int tileSize = Math.min(sheetWidth / c, sheetHeight / r);
+            if (tileSize > bestTileSize) {
+                bestTileSize = tileSize;
+                columns = c;
+            }
+        }
+
+        int rows = (ids.length + columns - 1) / columns;
+        int tileWidth = sheetWidth / columns;
+        int tileHeight = sheetHeight / rows;
+
+        Bitmap sheet = Bitmap.createBitmap(columns * tileWidth, rows * tileHeight, Bitmap.Config.ARGB_8888);
+        sheet.eraseColor(Color.BLACK);
+        Canvas canvas = new Canvas(sheet);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        for (int i = 0; i < ids.length; i++) {
+            if (request != currentRequest) return null;
+
+            Bitmap thumbnail = MediaStore.Images.Thumbnails.getThumbnail(getContentResolver(), ids[i],
+                    MediaStore.Images.Thumbnails.MICRO_KIND, null);
+            if (thumbnail == null) continue;
+
+            // Center-crop the thumbnail to the tile's aspect ratio
+            float ratio = Math.min((float) thumbnail.getWidth() / tileWidth,
+                    (float) thumbnail.getHeight() / tileHeight);
+            int cropWidth = (int) (tileWidth * ratio);
+            int cropHeight = (int) (tileHeight * ratio);
+            int left = (thumbnail.getWidth() - cropWidth) / 2;
+            int top = (thumbnail.getHeight() - cropHeight) / 2;
+
+            int x = (i % columns) * tileWidth;
+            int y = (i / columns) * tileHeight;
+
+            canvas.drawBitmap(thumbnail,
+                    new Rect(left, top, left + cropWidth, top + cropHeight),
+                    new Rect(x, y, x + tileWidth, y + tileHeight), paint);
+            thumbnail.recycle();
+        }
+
+        if (request != currentRequest) return null;
+
+        byte [] png = SimpleImageEncoder.encodeBitmapAsPNG(sheet, profile.color, profile.color ? 16 : 2, false,
+                null, colorSpace);
+        Log.d(TAG, "contact sheet with " + ids.length + " tiles: " + png.length + " bytes");
+
+        ByteBuffer tileIds = ByteBuffer.allocate(ids.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (int id : ids) {
+            tileIds.putInt(id);
+        }
+
+        // Sent as part of the transfer, so that a resumed sheet keeps its tiles
+        sheetInfo.addBytes(TILE_IDS_KEY, tileIds.array());
+        sheetInfo.addUint8(TILE_COLUMNS_KEY, (byte) columns);
+        sheetInfo.addUint8(TILE_WIDTH_KEY, (byte) tileWidth);
+        sheetInfo.addUint8(TILE_HEIGHT_KEY, (byte) tileHeight);
+
+        return png;
+    }
+
+    /**
+     * Sends a small low-fidelity preview of a photo, then the full-quality
+     * version. Both are encoded on the encoder thread, the full-quality image
+     * while the preview chunks are being sent, and are dropped if another
+     * photo is requested in the meantime.
+     *
+     * The watch shows the preview at its own (half) size, centered.
+     */
+    class ProgressiveTransfer {
+        final int request;
+        final long requestTime;
+        final int id;
+        final Bitmap photo;
+        final WatchProfile profile;
+
+        byte [] fullPng;
+        boolean previewSent = false;
+
+        ProgressiveTransfer(int request, long requestTime, int id, Bitmap photo, WatchProfile profile) {
+            this.request = request;
+            this.requestTime = requestTime;
+            this.id = id;
+            this.photo = photo;
+            this.profile = profile;
+        }
+
+        boolean isCurrent() {
+            return request == currentRequest;
+        }
+
+        void start() {
+            // Encode the preview, then the full image while the preview is being sent
+            encoder.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCurrent()) return;
+
+                    final byte [] previewPng = encodePreview();
+                    Log.d(TAG, "preview size: " + previewPng.length + " bytes");
+
+                    post(TASK_ENCODE, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (isCurrent()) sendPreview(previewPng);
+                        }
+                    });
+
+                    if (!isCurrent()) return;
+
+                    final byte [] png = encodePhoto(photo, profile);
+                    Log.d(TAG, "full size: " + png.length + " bytes");
+
+                    post(TASK_ENCODE, new Runnable() {
+                        @Override
+                        public void run() {
+                            encodeCache.put(getCacheKey(id, profile), png);
+                            fullPng = png;
+                            sendFullIfReady();
+                        }
+                    });
                 }
+            });
+        }
+
+        byte [] encodePreview() {
+            Bitmap preview = Bitmap.createScaledBitmap(photo,
+                    Math.max(1, photo.getWidth() / 2), Math.max(1, photo.getHeight() / 2), false);
+            return SimpleImageEncoder.encodeBitmapAsPNG(preview, profile.color,
+                    profile.color ? 4 : 2, false, profile.getVisibleMask(preview.getWidth(), preview.getHeight()),
+                    colorSpace);
+        }
+
+        void sendPreview(byte [] previewPng) {
+            sendImage(id | PREVIEW_ID_FLAG, previewPng, new TransferTimer(requestTime, true, false) {
+                @Override
+                public void onFileSent(int fileId) {
+                    super.onFileSent(fileId);
+                    previewSent = true;
+                    sendFullIfReady();
+                }
+            });
+        }
+
+        void sendFullIfReady() {
+            if (!isCurrent() || !previewSent || fullPng == null) return;
+
+            // The preview already counted as the first pixel
+            sendImage(id, fullPng, new PhotoTimer(requestTime, false, profile));
+        }
+    }
+
+    /**
+     * Records metrics for the full-quality photo, then prefetches the next one.
+     */
+    class PhotoTimer extends TransferTimer {
+        final WatchProfile profile;
+
+        PhotoTimer(long requestTime, boolean isFirst, WatchProfile profile) {
+            super(requestTime, isFirst, true);
+            this.profile = profile;
+        }
+
+        @Override
+        public void onFileSent(int id) {
+            super.onFileSent(id);
+            prefetchRandomPhoto(profile);
+        }
+    }
+
+    /**
+     * Records transfer metrics when a file has been sent.
+     */
+    class TransferTimer implements FileSender.FileSenderCallbacks {
+        final long requestTime;
+        final boolean isFirst;
+        final boolean isFinal;
+
+        TransferTimer(long requestTime, boolean isFirst, boolean isFinal) {
+            this.requestTime = requestTime;
+            this.isFirst = isFirst;
+            this.isFinal = isFinal;
+        }
+
+        @Override
+        public void onFileSent(int id) {
+            long elapsed = SystemClock.uptimeMillis() - requestTime;
+
+            if (isFirst) {
+                timeToFirstPixel.record(elapsed);
             }
 
-            @Override
-            public void onSendFailure() {
-                Log.w(TAG, "Failed to send photo");
+            if (isFinal) {
+                totalTransferTime.record(elapsed);
+                logTransferStats();
             }
-        });
+        }
+
+        @Override
+        public void onFileFailed(int id) {
+            Log.w(TAG, "Failed to send photo");
+        }
+    }
+
+    void logTransferStats() {
+        Log.d(TAG, "time to first pixel: " + timeToFirstPixel);
+        Log.d(TAG, "total transfer time: " + totalTransferTime);
+    }
+
+    /**
+     * Start a new PNG session if the watch sent a new session ID, or stop
+     * using sessions if the watch didn't send one.
+     */
+    void updateSession(PebbleDictionary data) {
+        Long sessionId = data.getUnsignedIntegerAsLong(SESSION_KEY);
+
+        if (sessionId == null) {
+            pngSession = null;
+        } else if (pngSession == null || pngSession.getSessionId() != sessionId) {
+            Log.d(TAG, "starting PNG session " + sessionId);
+            pngSession = new PngSession(sessionId);
+        }
+    }
+
+    /**
+     * Send an encoded PNG to the watch. If a PNG session is active, only
+     * the compressed image data is sent, preceded by the palette if the
+     * watch doesn't have it yet.
+     *
+     * @param id An ID used to identify the image being sent
+     * @param png Bytes in PNG format
+     * @param callbacks Optional callbacks for when the image has been sent
+     */
+    void sendImage(int id, byte [] png, FileSender.FileSenderCallbacks callbacks) {
+        sendImage(id, png, null, callbacks);
+    }
+
+    /**
+     * Send an encoded PNG to the watch, preceded by a message describing it.
+     * The message is logged with the transfer, so it is sent again if the
+     * transfer is resumed from the start.
+     *
+     * @param id An ID used to identify the image being sent
+     * @param png Bytes in PNG format
+     * @param info Optional message to send before the image
+     * @param callbacks Optional callbacks for when the image has been sent
+     */
+    void sendImage(int id, byte [] png, PebbleDictionary info, FileSender.FileSenderCallbacks callbacks) {
+        ArrayList<PebbleDictionary> preambles = new ArrayList<PebbleDictionary>();
+        if (info != null) preambles.add(info);
+
+        final PngSession session = pngSession;
+        PngSession.Encoded encoded = session != null ? session.encode(png) : null;
+
+        if (encoded == null) {
+            fileSender.sendFile(id, png, preambles, callbacks);
+            return;
+        }
+
+        final PngSession.PaletteDefinition definition = encoded.paletteDefinition;
+        FileSender.FileSenderCallbacks imageCallbacks = callbacks;
+
+        if (definition != null) {
+            PebbleDictionary preamble = new PebbleDictionary();
+            preamble.addUint8(PALETTE_SLOT_KEY, (byte) definition.slot);
+            if (definition.palette.length > 0) {
+                preamble.addBytes(PALETTE_KEY, definition.palette);
+            }
+            if (definition.transparency.length > 0) {
+                preamble.addBytes(PALETTE_TRNS_KEY, definition.transparency);
+            }
+            preambles.add(preamble);
+
+            // Until the image arrives, later images will define the palette again
+            final FileSender.FileSenderCallbacks originalCallbacks = callbacks;
+            imageCallbacks = new FileSender.FileSenderCallbacks() {
+                @Override
+                public void onFileSent(int fileId) {
+                    session.confirmPalette(definition.slot);
+                    if (originalCallbacks != null) originalCallbacks.onFileSent(fileId);
+                }
+
+                @Override
+                public void onFileFailed(int fileId) {
+                    if (originalCallbacks != null) originalCallbacks.onFileFailed(fileId);
+                }
+            };
+        }
+
+        Log.d(TAG, "session payload: " + encoded.payload.length + " bytes instead of " + png.length
+                + " (session total " + session.getSentBytes() + " of " + session.getPngBytes() + ")");
+        fileSender.sendFile(id, encoded.payload, preambles, imageCallbacks);
     }
 }
@@ -0,0 +1,115 @@
+package org.example.CompanionPhotosExample;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * In-memory list of photo IDs from the media store, so that random photos
+ * can be picked without a RANDOM() query for every request.
+ *
+ * Loading is done on a background thread. Until the index has loaded,
+ * getRandomIds() returns null and callers should query the media store.
+ */
+class PhotoIndex {
+    static final String TAG = PhotoIndex.class.getSimpleName();
+
+    // Reload in the background after this long, to pick up new photos
+    static final long MAX_AGE_MS = 10 * 60 * 1000;
+
+    final ContentResolver contentResolver;
+    final Random random = new Random();
+
+    volatile int [] ids;
+    volatile long loadTime;
+    boolean loading = false;
+
+    PhotoIndex(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Load the index. Blocks, so should be called on a background thread.
+     */
+    void load() {
+        synchronized (this) {
+            if (loading) return;
+            loading = true;
+        }
+
+        try {
+            long start = SystemClock.uptimeMillis();
+            String [] projection = { MediaStore.Images.ImageColumns._ID };
+
+            Cursor cur = MediaStore.Images.Media.query(contentResolver,
+                    MediaStore.Images.Media.EXTERNAL_CONTENT_URI, projection);
+            if (cur == null) return;
+
+            try {
+                int [] newIds = new int[cur.getCount()];
+                int column = cur.getColumnIndex(MediaStore.Images.ImageColumns._ID);
+                int i = 0;
+
+                while (cur.moveToNext() && i < newIds.length) {
+                    newIds[i++] = cur.getInt(column);
+                }
+
+                ids = i == newIds.length ? newIds : Arrays.copyOf(newIds, i);
+                loadTime = SystemClock.uptimeMillis();
+                Log.d(TAG, "indexed " + i + " photos in " + (loadTime - start) + "ms");
+            } finally {
+                cur.close();
+            }
+        } finally {
+            synchronized (this) {
+                loading = false;
+            }
+        }
+    }
+
+    void loadInBackground() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                load();
+            }
+        }, TAG).start();
+    }
+
+    /**
+     * Pick distinct random photos from the index.
+     *
+     * @param count Maximum number of photos
+     * @return IDs of up to count photos, or null if the index isn't loaded
+     */
+    int [] getRandomIds(int count) {
+        int [] snapshot = ids;
+        if (snapshot == null) return null;
+
+        if (SystemClock.uptimeMillis() - loadTime > MAX_AGE_MS) {
+            loadInBackground();
+        }
+
+        count = Math.min(count, snapshot.length);
+        HashSet<Integer> picked = new HashSet<Integer>();
+        int [] result = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            int index;
+            do {
+                index = random.nextInt(snapshot.length);
+            } while (!picked.add(index));
+
+            result[i] = snapshot[index];
+        }
+
+        return result;
+    }
+}
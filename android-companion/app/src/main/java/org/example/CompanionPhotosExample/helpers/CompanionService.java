@@ -7,14 +7,16 @@ import android.content.Intent;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.getpebble.android.kit.Constants;
 import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.UUID;
-import java.util.WeakHashMap;
 
 /**
  * Base class for writing companion app services for the Pebble watch.
@@ -27,6 +29,17 @@ import java.util.WeakHashMap;
  *
  * - In the constructor, call setAppUUID with your Pebble application's UUID.
  *
+ * - To host more watch apps in the same service, also call registerApp in the
+ *   constructor with each app's UUID and an AppDataHandler. Each app gets its
+ *   own outbox; a LinkScheduler shares the Bluetooth link between them.
+ *
+ * - Optionally override onWarmUp() to initialize expensive state (caches,
+ *   indexes) on a background thread, so that it doesn't delay the first
+ *   message after a cold start.
+ *
+ * - Optionally call setBlockedThreshold to change how long a single task may
+ *   block the event loop before a warning is logged.
+ *
  * - Override handleData() to handle incoming data from the watch.
  *   Make sure to call sendAck(transactionId) to acknowledge the data.
  *
@@ -53,41 +66,96 @@ import java.util.WeakHashMap;
 public abstract class CompanionService extends Service {
     static final String TAG = CompanionService.class.getSimpleName();
 
+    // Task types used to group event loop latency stats
+    public static final String TASK_DATA = "data";
+    public static final String TASK_ACK = "ack";
+    public static final String TASK_NACK = "nack";
+    public static final String TASK_SEND = "send";
+
+    // Set by ForwardReceiver to the time (in uptimeMillis) the broadcast arrived
+    static final String EXTRA_RECEIVED_TIME = "org.example.CompanionPhotosExample.RECEIVED_TIME";
+
+    // Time from a forwarded broadcast waking the service until the first ACK
+    protected static final LatencyRecorder coldStartLatency = new LatencyRecorder();
+
     protected UUID pebbleAppUUID;
 
     HandlerThread handlerThread;
     Handler handler;
-    BroadcastReceiver dataReceiver;
+    LoopMonitor loopMonitor;
+    long blockedThresholdMs = LoopMonitor.DEFAULT_BLOCKED_THRESHOLD_MS;
     BroadcastReceiver ackReceiver;
     BroadcastReceiver nackReceiver;
 
+    // Outbox for pebbleAppUUID
     OutboxManager outboxManager;
 
+    LinkScheduler linkScheduler;
+    final LinkedHashMap<UUID, AppChannel> apps = new LinkedHashMap<UUID, AppChannel>();
+
+    // Intents forwarded by ForwardReceiver, passed to the receivers in
+    // arrival order once they are set up
+    final StartupQueue<Intent> forwardedIntents = new StartupQueue<Intent>(new StartupQueue.Consumer<Intent>() {
+        @Override
+        public void accept(Intent intent) {
+            replayIntent(intent);
+        }
+    });
+
+    // Receive time of the forwarded intent that started the service,
+    // until the first ACK is sent
+    volatile long coldStartTime = -1;
+
     /**
-     * Hack using global (static) variables to determine if
-     * a service class has any running instances. For lack of a good
-     * way to do this otherwise.
+     * Handles data messages for a watch app registered with registerApp().
+     * Called on the service's handler thread.
      */
-    static class ServiceStateTracker {
-        static WeakHashMap<Class<? extends Service>, Service> instances =
-                new WeakHashMap<Class<? extends Service>, Service>();
+    public interface AppDataHandler {
+        public void handleData(int transactionId, PebbleDictionary data);
+    }
+
+    /**
+     * State for one watch app hosted by this service.
+     */
+    static class AppChannel {
+        final UUID uuid;
+        final AppDataHandler dataHandler;
+
+        OutboxManager outboxManager;
+        BroadcastReceiver dataReceiver;
 
-        static synchronized void addService(Service service) {
-            instances.put(service.getClass(), service);
+        AppChannel(UUID uuid, AppDataHandler dataHandler) {
+            this.uuid = uuid;
+            this.dataHandler = dataHandler;
         }
+    }
 
-        static synchronized void removeService(Service service) {
-            instances.remove(service.getClass());
+    /**
+     * Tracks which service classes have their PebbleKit receivers registered,
+     * and so receive broadcasts directly. Services that are stopped, starting
+     * up or shutting down are not ready.
+     */
+    static class ServiceStateTracker {
+        static final HashSet<Class<? extends Service>> readyServices =
+                new HashSet<Class<? extends Service>>();
+
+        static synchronized void setReady(Class<? extends Service> cls, boolean ready) {
+            if (ready) {
+                readyServices.add(cls);
+            } else {
+                readyServices.remove(cls);
+            }
         }
 
-        static synchronized boolean isServiceRunning(Class<? extends Service> cls) {
-            return instances.containsKey(cls);
+        static synchronized boolean isServiceReady(Class<? extends Service> cls) {
+            return readyServices.contains(cls);
         }
     }
 
     /**
      * Receiver that forwards broadcast intents to a service if the service is not
-     * running. Must override getServiceClass() to return the service class.
+     * ready to receive them itself. Must override getServiceClass() to return the
+     * service class.
      */
     public abstract static class ForwardReceiver extends BroadcastReceiver {
         public abstract Class<? extends Service> getServiceClass();
@@ -96,9 +164,12 @@ public abstract class CompanionService extends Service {
         public void onReceive(Context context, Intent intent) {
             intent.setClass(context, getServiceClass());
 
-            boolean isRunning = ServiceStateTracker.isServiceRunning(getServiceClass());
+            boolean isReady = ServiceStateTracker.isServiceReady(getServiceClass());
 
-            if (!isRunning) {
+            if (!isReady) {
+                // If the service is still starting, it buffers the intent
+                // until its receivers are set up
+                intent.putExtra(EXTRA_RECEIVED_TIME, SystemClock.uptimeMillis());
                 context.startService(intent);
             }
         }
@@ -113,17 +184,7 @@ public abstract class CompanionService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
 
         if (intent != null) {
-            String action = intent.getAction();
-
-            // Since the service is just booting up, check if we've been forwarded
-            // a broadcast intent
-            if (dataReceiver != null && Constants.INTENT_APP_RECEIVE.equals(action)) {
-                dataReceiver.onReceive(this, intent);
-            } else if (ackReceiver != null && Constants.INTENT_APP_RECEIVE_ACK.equals(action)) {
-                ackReceiver.onReceive(this, intent);
-            } else if (nackReceiver != null && Constants.INTENT_APP_RECEIVE_NACK.equals(action)) {
-                nackReceiver.onReceive(this, intent);
-            }
+            forwardedIntents.offer(intent);
         }
 
         // We want this service to continue running until it is explicitly
@@ -131,6 +192,30 @@ public abstract class CompanionService extends Service {
         return START_STICKY;
     }
 
+    /**
+     * Pass a broadcast intent that was forwarded by ForwardReceiver to the
+     * matching PebbleKit receiver.
+     */
+    protected void replayIntent(Intent intent) {
+        String action = intent.getAction();
+
+        long receivedTime = intent.getLongExtra(EXTRA_RECEIVED_TIME, -1);
+        if (receivedTime >= 0 && coldStartTime < 0 && Constants.INTENT_APP_RECEIVE.equals(action)) {
+            coldStartTime = receivedTime;
+        }
+
+        if (Constants.INTENT_APP_RECEIVE.equals(action)) {
+            // Each data receiver ignores intents for other UUIDs
+            for (AppChannel app : apps.values()) {
+                if (app.dataReceiver != null) app.dataReceiver.onReceive(this, intent);
+            }
+        } else if (ackReceiver != null && Constants.INTENT_APP_RECEIVE_ACK.equals(action)) {
+            ackReceiver.onReceive(this, intent);
+        } else if (nackReceiver != null && Constants.INTENT_APP_RECEIVE_NACK.equals(action)) {
+            nackReceiver.onReceive(this, intent);
+        }
+    }
+
     /**
      * Get handler, which can be used to post messages to the event loop asynchronously.
      * Note this will return null if the service hasn't been initialized with onCreate().
@@ -140,6 +225,45 @@ public abstract class CompanionService extends Service {
         return handler;
     }
 
+    /**
+     * Get the scheduler shared by the outboxes of all registered apps.
+     * Only available after onCreate().
+     */
+    public LinkScheduler getLinkScheduler() {
+        return linkScheduler;
+    }
+
+    /**
+     * Post a task to the event loop, recording its queue delay and run time
+     * under the given task type. Safe to call from any thread.
+     *
+     * @param taskType Label used to group stats and tag watchdog warnings
+     * @param task
+     */
+    public void post(String taskType, Runnable task) {
+        loopMonitor.post(taskType, task);
+    }
+
+    /**
+     * Get the event loop latency monitor.
+     * Note this will return null if the service hasn't been initialized with onCreate().
+     * @return loop monitor
+     */
+    public LoopMonitor getLoopMonitor() {
+        return loopMonitor;
+    }
+
+    /**
+     * Set how long a single task may block the event loop before the
+     * watchdog logs a warning.
+     *
+     * @param millis
+     */
+    public void setBlockedThreshold(long millis) {
+        blockedThresholdMs = millis;
+        if (loopMonitor != null) loopMonitor.setBlockedThreshold(millis);
+    }
+
     /**
      * Set Pebble watch app UUID
      */
@@ -147,24 +271,52 @@ public abstract class CompanionService extends Service {
         if (pebbleAppUUID != null) {
             throw new IllegalStateException("uuid already configured");
         }
+        registerApp(uuid, new AppDataHandler() {
+            @Override
+            public void handleData(int transactionId, PebbleDictionary data) {
+                CompanionService.this.handleData(transactionId, data);
+            }
+        });
         pebbleAppUUID = uuid;
     }
 
+    /**
+     * Host an additional Pebble watch app in this service. Must be called
+     * in the constructor, like setAppUUID.
+     *
+     * @param uuid Watch app UUID
+     * @param dataHandler Handles data messages from the watch app
+     */
+    public void registerApp(UUID uuid, AppDataHandler dataHandler) {
+        if (handler != null) {
+            throw new IllegalStateException("apps must be registered before onCreate");
+        }
+        if (apps.containsKey(uuid)) {
+            throw new IllegalStateException("uuid already registered");
+        }
+        apps.put(uuid, new AppChannel(uuid, dataHandler));
+    }
+
     protected void setupPebbleKitReceivers () {
-        dataReceiver = PebbleKit.registerReceivedDataHandler(this, new PebbleKit.PebbleDataReceiver(pebbleAppUUID) {
-            @Override
-            public void receiveData(final Context context, final int transactionId, final PebbleDictionary data) {
-                //Log.d(TAG, "got data from watch with transactionId " + transactionId);
+        for (final AppChannel app : apps.values()) {
+            app.dataReceiver = PebbleKit.registerReceivedDataHandler(this, new PebbleKit.PebbleDataReceiver(app.uuid) {
+                @Override
+                public void receiveData(final Context context, final int transactionId, final PebbleDictionary data) {
+                    //Log.d(TAG, "got data from watch with transactionId " + transactionId);
+
+                    // Run in handler thread
+                    post(TASK_DATA, new Runnable() {
+                        @Override
+                        public void run() {
+                            app.dataHandler.handleData(transactionId, data);
+                        }
+                    });
+                }
+            });
+        }
 
-                // Run in handler thread
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        handleData(transactionId, data);
-                    }
-                });
-            }
-        });
+        // ACKs and NACKs don't say which app they are for, so a single
+        // receiver routes them by transaction ID
 
         ackReceiver = PebbleKit.registerReceivedAckHandler(this, new PebbleKit.PebbleAckReceiver(pebbleAppUUID) {
             @Override
@@ -172,10 +324,15 @@ public abstract class CompanionService extends Service {
                 Log.d(TAG, "got ACK for transactionId " + transactionId);
 
                 // Run in handler thread
-                handler.post(new Runnable() {
+                post(TASK_ACK, new Runnable() {
                     @Override
                     public void run() {
-                        outboxManager.handleAck(transactionId);
+                        OutboxManager outbox = findOutbox(transactionId);
+                        if (outbox != null) {
+                            outbox.handleAck(transactionId);
+                        } else {
+                            Log.d(TAG, "ignoring ACK for unknown transactionId " + transactionId);
+                        }
                     }
                 });
             }
@@ -187,10 +344,15 @@ public abstract class CompanionService extends Service {
                 Log.d(TAG, "got NACK for transactionId " + transactionId);
 
                 // Run in handler thread
-                handler.post(new Runnable() {
+                post(TASK_NACK, new Runnable() {
                     @Override
                     public void run() {
-                        outboxManager.handleNack(transactionId);
+                        OutboxManager outbox = findOutbox(transactionId);
+                        if (outbox != null) {
+                            outbox.handleNack(transactionId);
+                        } else {
+                            Log.d(TAG, "ignoring NACK for unknown transactionId " + transactionId);
+                        }
                     }
                 });
             }
@@ -209,24 +371,81 @@ public abstract class CompanionService extends Service {
         handlerThread.start();
         handler = new Handler(handlerThread.getLooper());
 
-        outboxManager = new OutboxManager(getApplicationContext(), pebbleAppUUID);
+        loopMonitor = new LoopMonitor(handler);
+        loopMonitor.setBlockedThreshold(blockedThresholdMs);
+        loopMonitor.start();
+
+        linkScheduler = new LinkScheduler();
+
+        for (AppChannel app : apps.values()) {
+            app.outboxManager = new OutboxManager(getApplicationContext(), app.uuid);
+            app.outboxManager.setScheduler(linkScheduler);
+            app.outboxManager.setAckTimeout(handler, OutboxManager.DEFAULT_ACK_TIMEOUT_MS);
+        }
+        outboxManager = apps.get(pebbleAppUUID).outboxManager;
 
         setupPebbleKitReceivers();
 
-        ServiceStateTracker.addService(this);
+        // Broadcasts now reach the receivers directly, so they must no
+        // longer be forwarded
+        ServiceStateTracker.setReady(getClass(), true);
+
+        // Runs on the main thread like the receivers, so no broadcast can be
+        // handled before the intents forwarded ahead of it
+        forwardedIntents.open();
+
+        Thread warmUpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                onWarmUp();
+            }
+        }, TAG + "-warmup");
+        warmUpThread.start();
+    }
+
+    /**
+     * Developers can override this to initialize expensive state lazily.
+     * Called once on a background thread after the service is ready; messages
+     * from the watch may be handled before it finishes.
+     */
+    protected void onWarmUp() {
     }
 
     @Override
     public void onDestroy() {
-        ServiceStateTracker.removeService(this);
+        ServiceStateTracker.setReady(getClass(), false);
+
+        int dropped = forwardedIntents.close();
+        if (dropped > 0) {
+            Log.w(TAG, "dropping " + dropped + " forwarded intents");
+        }
 
-        if (dataReceiver != null) unregisterReceiver(dataReceiver);
+        for (AppChannel app : apps.values()) {
+            if (app.dataReceiver != null) unregisterReceiver(app.dataReceiver);
+            app.dataReceiver = null;
+        }
         if (ackReceiver != null) unregisterReceiver(ackReceiver);
         if (nackReceiver != null) unregisterReceiver(nackReceiver);
 
-        dataReceiver = ackReceiver = nackReceiver = null;
+        ackReceiver = nackReceiver = null;
 
-        if (handlerThread != null) handlerThread.quit();
+        if (loopMonitor != null) {
+            loopMonitor.stop();
+            loopMonitor.logStats();
+        }
+
+        if (handlerThread != null) {
+            // Quit once the tasks already queued (such as commands received
+            // just before stopping) have run
+            final HandlerThread thread = handlerThread;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    thread.quit();
+                }
+            });
+        }
         handlerThread = null;
     }
 
@@ -236,7 +455,7 @@ public abstract class CompanionService extends Service {
      * @param data
      */
     public void asyncSendMessage(final PebbleDictionary data) {
-        handler.post(new Runnable() {
+        post(TASK_SEND, new Runnable() {
             @Override
             public void run() {
                 sendMessage(data);
@@ -244,6 +463,21 @@ public abstract class CompanionService extends Service {
         });
     }
 
+    /**
+     * Send a message to a registered watch app. Safe to call from any thread.
+     *
+     * @param uuid
+     * @param data
+     */
+    public void asyncSendMessage(final UUID uuid, final PebbleDictionary data) {
+        post(TASK_SEND, new Runnable() {
+            @Override
+            public void run() {
+                sendMessage(uuid, data, null);
+            }
+        });
+    }
+
     /**
      * Send data to the watch, with built-in retry handling.
      * Should only be called from the service's handler thread.
@@ -269,11 +503,75 @@ public abstract class CompanionService extends Service {
      * Should only be called from the service's handler thread.
      */
     protected void clearOutbox() {
+        outboxManager.clearOutbox();
+    }
+
+    /**
+     * Send data to a registered watch app, with built-in retry handling.
+     * Should only be called from the service's handler thread.
+     *
+     * @param uuid
+     * @param data
+     * @param callbacks Optional callbacks for when the message has been sent or failed
+     */
+    protected void sendMessage(UUID uuid, PebbleDictionary data, OutboxManager.OutgoingMessageCallbacks callbacks) {
+        getOutboxManager(uuid).sendMessage(data, callbacks);
+    }
+
+    /**
+     * Clear the outgoing message queue of a registered watch app.
+     * Should only be called from the service's handler thread.
+     */
+    protected void clearOutbox(UUID uuid) {
+        getOutboxManager(uuid).clearOutbox();
+    }
+
+    /**
+     * Get the outbox used to send messages to a registered watch app.
+     * Should only be used from the service's handler thread.
+     * @return outbox manager
+     */
+    protected OutboxManager getOutboxManager(UUID uuid) {
+        AppChannel app = apps.get(uuid);
+        if (app == null) {
+            throw new IllegalArgumentException("uuid not registered: " + uuid);
+        }
+        return app.outboxManager;
+    }
+
+    /**
+     * Find the outbox that sent a transaction.
+     *
+     * @return outbox, or null if the transaction is stale or unknown
+     */
+    protected OutboxManager findOutbox(int transactionId) {
+        for (AppChannel app : apps.values()) {
+            if (app.outboxManager.hasTransaction(transactionId)) {
+                return app.outboxManager;
+            }
+        }
+        return null;
+    }
 
+    /**
+     * Get the outbox used to send messages to the watch.
+     * Should only be used from the service's handler thread.
+     * @return outbox manager
+     */
+    protected OutboxManager getOutboxManager() {
+        return outboxManager;
     }
 
     protected void sendAck(int transactionId) {
         PebbleKit.sendAckToPebble(getApplicationContext(), transactionId);
+
+        if (coldStartTime >= 0) {
+            long elapsed = SystemClock.uptimeMillis() - coldStartTime;
+            coldStartTime = -1;
+
+            coldStartLatency.record(elapsed);
+            Log.d(TAG, "first ACK " + elapsed + "ms after cold start (" + coldStartLatency + ")");
+        }
     }
 
     protected void sendNack(int transactionId) {
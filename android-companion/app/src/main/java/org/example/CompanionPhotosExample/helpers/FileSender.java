@@ -0,0 +1,216 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends files to the watch as a sequence of chunks, to be reassembled by
+ * file_receiver.c on the watch. Each chunk is sent after the prior chunk
+ * is acknowledged.
+ *
+ * If a TransferLog is set, transfers and their progress are logged so that
+ * they can be resumed with resumePendingTransfers() after a restart.
+ *
+ * Should only be used from the service's handler thread.
+ */
+public class FileSender {
+    static final String TAG = FileSender.class.getSimpleName();
+
+    // Max message size is currently ~124 bytes for companion apps
+    // Use 100 bytes to leave room for a few small fields
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    // Dictionary header plus the file ID, size and offset tuples, and the
+    // header of the bytes tuple
+    public static final int MESSAGE_OVERHEAD = 1 + 7 + 4 + 7 + 2 + 7 + 2 + 7;
+
+    /**
+     * Message keys, matching FileReceiverMessageKeys on the watch.
+     */
+    public static class MessageKeys {
+        final int idKey;
+        final int bytesKey;
+        final int totalSizeKey;
+        final int offsetKey;
+
+        public MessageKeys(int idKey, int bytesKey, int totalSizeKey, int offsetKey) {
+            this.idKey = idKey;
+            this.bytesKey = bytesKey;
+            this.totalSizeKey = totalSizeKey;
+            this.offsetKey = offsetKey;
+        }
+    }
+
+    public interface FileSenderCallbacks {
+        public void onFileSent(int id);
+        public void onFileFailed(int id);
+    }
+
+    protected OutboxManager outboxManager;
+    protected MessageKeys keys;
+    protected int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    protected TransferLog transferLog;
+
+    // IDs of logged transfers that haven't finished
+    protected ArrayList<Integer> activeTransfers = new ArrayList<Integer>();
+
+    public FileSender(OutboxManager outboxManager, MessageKeys keys) {
+        this.outboxManager = outboxManager;
+        this.keys = keys;
+    }
+
+    public void setChunkSize(int chunkSize) { this.chunkSize = chunkSize; }
+    public int getChunkSize() { return chunkSize; }
+
+    /**
+     * @return size on the wire of a message carrying a full chunk
+     */
+    public static int getMessageSize(int chunkSize) {
+        return MESSAGE_OVERHEAD + chunkSize;
+    }
+
+    /**
+     * Log transfers so that they survive a restart. Optional.
+     */
+    public void setTransferLog(TransferLog transferLog) { this.transferLog = transferLog; }
+
+    /**
+     * Send an array of bytes to the watch. The data will be split into
+     * multiple messages and sent in sequence after each prior message
+     * is acknowledged.
+     *
+     * Clearing the outbox cancels the rest of the transfer; no callbacks
+     * will be called in that case.
+     *
+     * @param id An ID used to identify the data being sent
+     * @param bytes Array of bytes
+     * @param callbacks Optional callbacks for when the whole file has been sent or failed
+     */
+    public void sendFile(int id, byte [] bytes, FileSenderCallbacks callbacks) {
+        sendFile(id, bytes, Collections.<PebbleDictionary>emptyList(), callbacks);
+    }
+
+    /**
+     * Send an array of bytes to the watch, preceded by a message that the
+     * watch needs in order to use the file. If the transfer is resumed after
+     * a restart, the preamble is sent again unless a chunk was already
+     * acknowledged.
+     *
+     * @param id An ID used to identify the data being sent
+     * @param bytes Array of bytes
+     * @param preamble Optional message to send before the first chunk
+     * @param callbacks Optional callbacks for when the whole file has been sent or failed
+     */
+    public void sendFile(int id, byte [] bytes, PebbleDictionary preamble, FileSenderCallbacks callbacks) {
+        sendFile(id, bytes, preamble != null ? Collections.singletonList(preamble)
+                : Collections.<PebbleDictionary>emptyList(), callbacks);
+    }
+
+    /**
+     * Send an array of bytes to the watch, preceded by messages that the
+     * watch needs in order to use the file, in order. If the transfer is
+     * resumed after a restart, the preambles are sent again unless a chunk
+     * was already acknowledged.
+     *
+     * @param id An ID used to identify the data being sent
+     * @param bytes Array of bytes
+     * @param preambles Messages to send before the first chunk, possibly none
+     * @param callbacks Optional callbacks for when the whole file has been sent or failed
+     */
+    public void sendFile(int id, byte [] bytes, List<PebbleDictionary> preambles, FileSenderCallbacks callbacks) {
+        int transferId = -1;
+        if (transferLog != null) {
+            transferId = transferLog.startTransfer(id, bytes, preambles);
+            if (transferId >= 0) activeTransfers.add(transferId);
+        }
+
+        for (PebbleDictionary preamble : preambles) {
+            outboxManager.sendMessage(preamble);
+        }
+        sendChunk(transferId, id, bytes, 0, callbacks);
+    }
+
+    /**
+     * Resume transfers left unfinished by a previous run, from the last
+     * acknowledged offset.
+     *
+     * @param callbacks Optional callbacks for each resumed transfer
+     */
+    public void resumePendingTransfers(FileSenderCallbacks callbacks) {
+        if (transferLog == null) return;
+
+        for (TransferLog.PendingTransfer transfer : transferLog.getPendingTransfers()) {
+            Log.d(TAG, "resuming file " + transfer.fileId + " from offset " + transfer.offset);
+            activeTransfers.add(transfer.transferId);
+
+            if (transfer.offset == 0) {
+                for (PebbleDictionary preamble : transfer.preambles) {
+                    outboxManager.sendMessage(preamble);
+                }
+            }
+            sendChunk(transfer.transferId, transfer.fileId, transfer.bytes, transfer.offset, callbacks);
+        }
+    }
+
+    /**
+     * Mark unfinished transfers as cancelled, so they won't be resumed.
+     * Call this when clearing the outbox.
+     */
+    public void cancelTransfers() {
+        if (transferLog == null) return;
+
+        for (int transferId : activeTransfers) {
+            transferLog.finishTransfer(transferId);
+        }
+        activeTransfers.clear();
+    }
+
+    protected void finishTransfer(int transferId) {
+        if (transferId < 0) return;
+
+        activeTransfers.remove(Integer.valueOf(transferId));
+        transferLog.finishTransfer(transferId);
+    }
+
+    protected void sendChunk(final int transferId, final int id, final byte [] bytes, final int offset,
+                             final FileSenderCallbacks callbacks) {
+        PebbleDictionary data = new PebbleDictionary();
+
+        final int end = Math.min(offset + chunkSize, bytes.length);
+
+        data.addUint32(keys.idKey, id);
+        data.addBytes(keys.bytesKey, Arrays.copyOfRange(bytes, offset, end));
+        data.addUint16(keys.totalSizeKey, (short) bytes.length);
+        data.addUint16(keys.offsetKey, (short) offset);
+
+        Log.d(TAG, "Sending bytes " + offset + "-" + end + " of " + bytes.length);
+        outboxManager.sendMessage(data, new OutboxManager.OutgoingMessageCallbacks() {
+            @Override
+            public void onSendSuccess() {
+                if (end < bytes.length) {
+                    if (transferId >= 0) transferLog.recordProgress(transferId, end);
+
+                    // Send the next chunk of bytes
+                    sendChunk(transferId, id, bytes, end, callbacks);
+                } else {
+                    finishTransfer(transferId);
+                    if (callbacks != null) callbacks.onFileSent(id);
+                }
+            }
+
+            @Override
+            public void onSendFailure() {
+                Log.w(TAG, "Failed to send file " + id);
+                finishTransfer(transferId);
+                if (callbacks != null) callbacks.onFileFailed(id);
+            }
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latency samples (in milliseconds) in a ring buffer
+ * and computes percentiles over them on demand.
+ *
+ * Safe to use from multiple threads.
+ */
+public class LatencyRecorder {
+    public static final int DEFAULT_WINDOW_SIZE = 256;
+
+    protected final long [] samples;
+    protected int count = 0;
+    protected int next = 0;
+    protected long max = 0;
+    protected long total = 0;
+
+    public LatencyRecorder() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize Number of recent samples used for percentiles
+     */
+    public LatencyRecorder(int windowSize) {
+        if (windowSize < 1) throw new IllegalArgumentException("window size must be positive");
+        samples = new long[windowSize];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+
+        if (millis > max) max = millis;
+        total++;
+    }
+
+    /**
+     * Get a percentile over the recent samples.
+     *
+     * @param percentile Between 0 and 100
+     * @return latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return 0;
+
+        long [] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /**
+     * @return largest sample ever recorded, including ones outside the window
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return number of samples ever recorded
+     */
+    public synchronized long getTotalCount() {
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "p50=" + getPercentile(50) + "ms"
+                + " p90=" + getPercentile(90) + "ms"
+                + " p99=" + getPercentile(99) + "ms"
+                + " max=" + max + "ms"
+                + " n=" + total;
+    }
+}
@@ -0,0 +1,115 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shares the Bluetooth link between several outboxes (typically one per
+ * watch app) using deficit round-robin, so that a bulk transfer in one
+ * outbox can't starve small messages in another.
+ *
+ * Each outbox with queued messages earns a quantum of bytes per round and
+ * may send messages as long as it has enough credit for them.
+ *
+ * Should only be used from the service's handler thread.
+ */
+public class LinkScheduler {
+    // One message carrying a full file chunk, so each turn allows one chunk
+    public static final int DEFAULT_QUANTUM = FileSender.getMessageSize(FileSender.DEFAULT_CHUNK_SIZE);
+
+    protected final LinkedList<OutboxManager> active = new LinkedList<OutboxManager>();
+    protected final Map<OutboxManager, Integer> deficits = new HashMap<OutboxManager, Integer>();
+    protected final Set<OutboxManager> inFlight = new HashSet<OutboxManager>();
+
+    protected int quantum = DEFAULT_QUANTUM;
+    protected int maxInFlight = 1;
+    protected int nextId = 1;
+
+    /**
+     * Set the credit earned per round. Should be the size of the largest
+     * regular message, e.g. FileSender.getMessageSize() for the chunk size
+     * in use; smaller quanta take several rounds to send one message.
+     */
+    public void setQuantum(int quantum) {
+        if (quantum < 1) throw new IllegalArgumentException("quantum must be positive");
+        this.quantum = quantum;
+    }
+
+    /**
+     * Set how many messages may be waiting for an ACK at the same time,
+     * across all outboxes. Each outbox still sends one message at a time.
+     *
+     * Outboxes should have an ACK timeout (see OutboxManager.setAckTimeout),
+     * or a single lost ACK stops every outbox.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("must allow at least one message");
+        this.maxInFlight = maxInFlight;
+    }
+
+    public int getNextTransactionId() {
+        return (nextId++ % 255);
+    }
+
+    public void onMessageQueued(OutboxManager outbox) {
+        if (!active.contains(outbox)) {
+            active.add(outbox);
+        }
+        schedule();
+    }
+
+    public void onMessageFinished(OutboxManager outbox) {
+        inFlight.remove(outbox);
+        schedule();
+    }
+
+    public void onOutboxCleared(OutboxManager outbox) {
+        inFlight.remove(outbox);
+        active.remove(outbox);
+        deficits.remove(outbox);
+        schedule();
+    }
+
+    protected void schedule() {
+        // Number of outboxes visited in a row without sending anything,
+        // to stop when every active outbox is waiting for an ACK
+        int skipped = 0;
+
+        while (inFlight.size() < maxInFlight && !active.isEmpty() && skipped < active.size()) {
+            OutboxManager outbox = active.getFirst();
+
+            if (inFlight.contains(outbox)) {
+                active.addLast(active.removeFirst());
+                skipped++;
+                continue;
+            }
+
+            int size = outbox.getNextMessageSize();
+            if (size < 0) {
+                // Nothing left to send; idle outboxes don't keep credit
+                active.removeFirst();
+                deficits.remove(outbox);
+                continue;
+            }
+
+            Integer deficit = deficits.get(outbox);
+            if (deficit == null) deficit = 0;
+
+            if (deficit < size) {
+                // End of this outbox's turn; earn credit for the next round
+                deficits.put(outbox, deficit + quantum);
+                active.addLast(active.removeFirst());
+                skipped = 0;
+                continue;
+            }
+
+            deficits.put(outbox, deficit - size);
+            inFlight.add(outbox);
+            outbox.flushOutbox();
+            skipped = 0;
+        }
+    }
+}
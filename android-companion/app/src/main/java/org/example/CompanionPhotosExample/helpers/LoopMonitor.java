@@ -0,0 +1,202 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures how long tasks posted to an event loop wait in the queue and
+ * how long they take to run, grouped by task type.
+ *
+ * A watchdog on the main looper logs a warning if a single task keeps
+ * the loop blocked for longer than the configured threshold. The watchdog
+ * is only scheduled while a task is running, so an idle loop costs nothing.
+ *
+ * Basic usage:
+ *
+ * - Use post(taskType, runnable) instead of handler.post(runnable).
+ * - Call start() to enable the watchdog and stop() when the loop shuts down.
+ */
+public class LoopMonitor {
+    static final String TAG = LoopMonitor.class.getSimpleName();
+
+    public static final long DEFAULT_BLOCKED_THRESHOLD_MS = 500;
+
+    /**
+     * Latency stats for a single task type.
+     */
+    public static class TaskStats {
+        public final LatencyRecorder queueDelay = new LatencyRecorder();
+        public final LatencyRecorder runTime = new LatencyRecorder();
+
+        @Override
+        public String toString() {
+            return "queue [" + queueDelay + "] run [" + runTime + "]";
+        }
+    }
+
+    /**
+     * A task that is currently running, published as one object so that
+     * the watchdog never pairs one task's type with another's start time.
+     */
+    protected static class RunningTask {
+        final String taskType;
+        final long start;
+
+        RunningTask(String taskType, long start) {
+            this.taskType = taskType;
+            this.start = start;
+        }
+    }
+
+    protected final Handler handler;
+    protected final Handler watchdogHandler;
+    protected final Map<String, TaskStats> stats = new LinkedHashMap<String, TaskStats>();
+
+    protected volatile long blockedThresholdMs = DEFAULT_BLOCKED_THRESHOLD_MS;
+
+    // Written by the loop thread, read by the watchdog
+    protected volatile RunningTask currentTask;
+
+    protected volatile boolean running = false;
+
+    /**
+     * @param handler Handler for the event loop being monitored
+     */
+    public LoopMonitor(Handler handler) {
+        this(handler, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler Handler for the event loop being monitored
+     * @param watchdogHandler Handler for a different thread, which runs the watchdog
+     */
+    LoopMonitor(Handler handler, Handler watchdogHandler) {
+        this.handler = handler;
+        this.watchdogHandler = watchdogHandler;
+    }
+
+    protected long now() {
+        return SystemClock.uptimeMillis();
+    }
+
+    public void setBlockedThreshold(long millis) {
+        blockedThresholdMs = millis;
+    }
+
+    public long getBlockedThreshold() {
+        return blockedThresholdMs;
+    }
+
+    /**
+     * Post a task to the monitored event loop.
+     *
+     * @param taskType Short label used to group stats and tag warnings
+     * @param task
+     */
+    public boolean post(String taskType, Runnable task) {
+        return handler.post(wrap(taskType, task));
+    }
+
+    /**
+     * Wrap a task so that its queue delay and run time are recorded
+     * when it runs on the event loop.
+     */
+    public Runnable wrap(final String taskType, final Runnable task) {
+        final long enqueueTime = now();
+        final TaskStats taskStats = getStats(taskType);
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                long start = now();
+                long queueDelay = start - enqueueTime;
+                taskStats.queueDelay.record(queueDelay);
+
+                if (queueDelay > blockedThresholdMs) {
+                    Log.w(TAG, "task '" + taskType + "' waited " + queueDelay + "ms in queue");
+                }
+
+                boolean watched = running;
+                currentTask = new RunningTask(taskType, start);
+                if (watched) {
+                    watchdogHandler.postDelayed(watchdog, blockedThresholdMs);
+                }
+
+                try {
+                    task.run();
+                } finally {
+                    if (watched) {
+                        watchdogHandler.removeCallbacks(watchdog);
+                    }
+                    currentTask = null;
+                    taskStats.runTime.record(now() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get (or create) the stats for a task type.
+     */
+    public TaskStats getStats(String taskType) {
+        synchronized (stats) {
+            TaskStats taskStats = stats.get(taskType);
+            if (taskStats == null) {
+                taskStats = new TaskStats();
+                stats.put(taskType, taskStats);
+            }
+            return taskStats;
+        }
+    }
+
+    public void logStats() {
+        synchronized (stats) {
+            for (Map.Entry<String, TaskStats> entry : stats.entrySet()) {
+                Log.d(TAG, entry.getKey() + ": " + entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Start the watchdog for tasks that start from now on.
+     */
+    public void start() {
+        running = true;
+    }
+
+    /**
+     * Stop the watchdog.
+     */
+    public void stop() {
+        running = false;
+        watchdogHandler.removeCallbacks(watchdog);
+    }
+
+    // Scheduled when a task starts and removed when it finishes, so this
+    // only runs if the task is still running after the threshold
+    protected final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            RunningTask task = currentTask;
+            if (!running || task == null) return;
+
+            long blocked = now() - task.start;
+            if (blocked >= blockedThresholdMs) {
+                onBlocked(task.taskType, blocked);
+            }
+        }
+    };
+
+    /**
+     * Called on the watchdog's thread when a task has been running for at
+     * least the blocked threshold.
+     */
+    protected void onBlocked(String taskType, long blockedMs) {
+        Log.w(TAG, "event loop blocked for " + blockedMs + "ms by task '" + taskType + "'");
+    }
+}
@@ -0,0 +1,95 @@
+package org.example.CompanionPhotosExample.helpers;
+
+/**
+ * Converts colors to the OKLab perceptual color space using integer math
+ * and lookup tables, so that distances between colors can be compared
+ * cheaply for every pixel.
+ *
+ * L is scaled to 0-4096 and a and b to roughly -1600 to 1600. Results are
+ * within 0.004 (with L from 0 to 1) of the exact conversion; the largest
+ * errors are near black.
+ * See https://bottosson.github.io/posts/oklab/
+ */
+public class OkLab {
+    public static final int SCALE_BITS = 12;
+    public static final int ONE = 1 << SCALE_BITS;
+
+    // Linear light and LMS cone responses are 16-bit
+    static final int LINEAR_MAX = 0xffff;
+
+    // Fractional bits of the fixed-point matrices
+    static final int M1_BITS = 14;
+    static final int M2_BITS = 12;
+
+    // Linear sRGB to LMS
+    static final int [] M1 = fixed(M1_BITS, new double [] {
+            0.4122214708, 0.5363325363, 0.0514459929,
+            0.2119034982, 0.6806995451, 0.1073969566,
+            0.0883024619, 0.2817188376, 0.6299787005
+    });
+
+    // Nonlinear LMS to Lab
+    static final int [] M2 = fixed(M2_BITS, new double [] {
+            0.2104542553, 0.7936177850, -0.0040720468,
+            1.9779984951, -2.4285922050, 0.4505937099,
+            0.0259040371, 0.7827717662, -0.8086757660
+    });
+
+    // sRGB channel value to linear light
+    static final int [] LINEAR = new int[256];
+
+    // Linear cone response to its cube root, scaled to ONE
+    static final char [] CBRT = new char[LINEAR_MAX + 1];
+
+    static {
+        for (int i = 0; i < LINEAR.length; i++) {
+            double c = i / 255.0;
+            double linear = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+            LINEAR[i] = (int) Math.round(linear * LINEAR_MAX);
+        }
+
+        for (int i = 0; i < CBRT.length; i++) {
+            CBRT[i] = (char) Math.round(Math.cbrt((double) i / LINEAR_MAX) * ONE);
+        }
+    }
+
+    static int [] fixed(int bits, double [] matrix) {
+        int [] result = new int[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            result[i] = (int) Math.round(matrix[i] * (1 << bits));
+        }
+        return result;
+    }
+
+    /**
+     * Load the lookup tables. Called by SimpleImageEncoder.warmUp().
+     */
+    public static void warmUp() {
+        fromColor(0, new int[3]);
+    }
+
+    static int cbrt(int r, int g, int b, int row) {
+        int value = (M1[row] * r + M1[row + 1] * g + M1[row + 2] * b) >> M1_BITS;
+        return CBRT[Math.max(0, Math.min(LINEAR_MAX, value))];
+    }
+
+    /**
+     * Convert an ARGB color to Lab. Alpha is ignored.
+     *
+     * @param color
+     * @param lab Receives L, a and b
+     */
+    public static void fromColor(int color, int [] lab) {
+        int r = LINEAR[(color >> 16) & 0xff];
+        int g = LINEAR[(color >> 8) & 0xff];
+        int b = LINEAR[color & 0xff];
+
+        int l = cbrt(r, g, b, 0);
+        int m = cbrt(r, g, b, 3);
+        int s = cbrt(r, g, b, 6);
+
+        lab[0] = (M2[0] * l + M2[1] * m + M2[2] * s) >> M2_BITS;
+        lab[1] = (M2[3] * l + M2[4] * m + M2[5] * s) >> M2_BITS;
+        lab[2] = (M2[6] * l + M2[7] * m + M2[8] * s) >> M2_BITS;
+    }
+}
@@ -1,10 +1,12 @@
 package org.example.CompanionPhotosExample.helpers;
 
 import android.content.Context;
+import android.os.Handler;
 import android.util.Log;
 
 import com.getpebble.android.kit.PebbleKit;
 import com.getpebble.android.kit.util.PebbleDictionary;
+import com.getpebble.android.kit.util.PebbleTuple;
 
 import java.util.ArrayList;
 import java.util.UUID;
@@ -14,6 +16,10 @@ import java.util.UUID;
  */
 public class OutboxManager {
     static final String TAG = OutboxManager.class.getSimpleName();
+
+    // How long to wait for an ACK or NACK before resending a message
+    public static final long DEFAULT_ACK_TIMEOUT_MS = 10000;
+
     protected UUID uuid;
 
     protected Context context;
@@ -21,12 +27,49 @@ public class OutboxManager {
 
     protected int nextId = 1;
 
+    // If set, decides when queued messages are sent; see LinkScheduler
+    protected LinkScheduler scheduler;
+
+    // If set, runs ACK timeouts; see setAckTimeout
+    protected Handler timeoutHandler;
+    protected long ackTimeoutMs = DEFAULT_ACK_TIMEOUT_MS;
+
     public OutboxManager(Context context, UUID uuid) {
         this.context = context;
         this.uuid = uuid;
     }
 
+    public UUID getUUID() {
+        return uuid;
+    }
+
+    /**
+     * Share the Bluetooth link with other outboxes. Should be set
+     * before any messages are sent.
+     */
+    public void setScheduler(LinkScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Treat messages that get neither an ACK nor a NACK in time as NACKed,
+     * so that they are resent and eventually fail instead of holding up
+     * the outbox (and, with a LinkScheduler, every other outbox) forever.
+     *
+     * @param handler The service's handler; timeouts run on its thread
+     * @param timeoutMs
+     */
+    public void setAckTimeout(Handler handler, long timeoutMs) {
+        this.timeoutHandler = handler;
+        this.ackTimeoutMs = timeoutMs;
+    }
+
     protected int getNextTransactionId() {
+        if (scheduler != null) {
+            // Transaction IDs must be unique across the link, since
+            // ACKs don't say which app they belong to
+            return scheduler.getNextTransactionId();
+        }
         return (nextId++ % 255);
     }
 
@@ -36,6 +79,9 @@ public class OutboxManager {
         int retryCount = 0;
         int maxRetries = 3;
 
+        // Posted while waiting for an ACK
+        Runnable timeout;
+
         PebbleDictionary data;
         OutgoingMessageCallbacks callbacks;
 
@@ -60,6 +106,18 @@ public class OutboxManager {
             retryCount++;
             return retryCount <= maxRetries;
         }
+
+        /**
+         * Approximate size of the message on the wire, in bytes.
+         */
+        public int getSize() {
+            // Dictionary header, plus key, type and length for each tuple
+            int size = 1;
+            for (PebbleTuple tuple : data) {
+                size += 7 + tuple.length;
+            }
+            return size;
+        }
     }
 
     public interface OutgoingMessageCallbacks {
@@ -97,32 +155,105 @@ public class OutboxManager {
 
         outbox.add(message);
 
-        if (outbox.size() <= 1) {
+        if (scheduler != null) {
+            scheduler.onMessageQueued(this);
+        } else if (outbox.size() <= 1) {
             Log.d(TAG, "sending data with transactionId " + id);
-            message.sent = true;
             // Send immediately if this is the only queued message
-            PebbleKit.sendDataToPebbleWithTransactionId(
-                    context, uuid,
-                    message.getData(), id);
-        } // otherwise, wait for next ACK. TODO: schedule timeout
+            dispatch(message);
+        } // otherwise, wait for next ACK
+    }
+
+    // Transmit a message and wait for its ACK
+    protected void dispatch(final OutgoingMessage message) {
+        message.sent = true;
+        transmit(message);
+
+        if (timeoutHandler == null) return;
+
+        if (message.timeout == null) {
+            message.timeout = new Runnable() {
+                @Override
+                public void run() {
+                    if (!outbox.contains(message)) return;
+
+                    Log.w(TAG, "no response for transactionId " + message.getTransactionId());
+                    handleNack(message.getTransactionId());
+                }
+            };
+        }
+        timeoutHandler.removeCallbacks(message.timeout);
+        timeoutHandler.postDelayed(message.timeout, ackTimeoutMs);
+    }
+
+    protected void cancelTimeout(OutgoingMessage message) {
+        if (timeoutHandler != null && message.timeout != null) {
+            timeoutHandler.removeCallbacks(message.timeout);
+        }
+    }
+
+    /**
+     * Hand a message to PebbleKit. Can be overridden to send messages
+     * somewhere else, e.g. a fake watch in benchmarks.
+     */
+    protected void transmit(OutgoingMessage message) {
+        PebbleKit.sendDataToPebbleWithTransactionId(
+                context, uuid,
+                message.getData(), message.getTransactionId());
     }
 
     protected void clearOutbox() {
+        for (OutgoingMessage message : outbox) {
+            cancelTimeout(message);
+        }
         outbox.clear();
+
+        if (scheduler != null) {
+            scheduler.onOutboxCleared(this);
+        }
     }
 
-    // Send the first unsent message
-    protected void flushOutbox() {
+    protected OutgoingMessage findUnsentMessage() {
         for (OutgoingMessage message : outbox) {
             if (!message.sent) {
-                Log.d(TAG, "sending queued data with transactionId " + message.getTransactionId());
-                PebbleKit.sendDataToPebbleWithTransactionId(
-                        context, uuid,
-                        message.getData(), message.getTransactionId());
-                message.sent = true;
-                break;
+                return message;
             }
         }
+        return null;
+    }
+
+    /**
+     * @return size of the next message waiting to be sent, or -1 if none
+     */
+    public int getNextMessageSize() {
+        OutgoingMessage message = findUnsentMessage();
+        return message != null ? message.getSize() : -1;
+    }
+
+    // Send the first unsent message
+    protected boolean flushOutbox() {
+        OutgoingMessage message = findUnsentMessage();
+        if (message == null) return false;
+
+        Log.d(TAG, "sending queued data with transactionId " + message.getTransactionId());
+        dispatch(message);
+        return true;
+    }
+
+    // Called once a message has been ACKed or given up on
+    protected void onMessageFinished() {
+        if (scheduler != null) {
+            scheduler.onMessageFinished(this);
+        } else {
+            flushOutbox();
+        }
+    }
+
+    /**
+     * @return whether the transaction belongs to a message in this outbox
+     */
+    public boolean hasTransaction(int transactionId) {
+        return findOutgoingMessage(transactionId) != null;
     }
 
     protected OutgoingMessage findOutgoingMessage(int transactionId) {
@@ -140,26 +271,29 @@ public class OutboxManager {
     public void handleAck(int transactionId) {
         OutgoingMessage message = findOutgoingMessage(transactionId);
         if (message != null) {
+            cancelTimeout(message);
             outbox.remove(message);
             if (message.callbacks != null)
                 message.callbacks.onSendSuccess();
+        } else if (scheduler != null) {
+            // Not ours (or already cleared); nothing was in flight
+            return;
         }
-        flushOutbox();
+        onMessageFinished();
     }
 
     public void handleNack(int transactionId) {
         OutgoingMessage message = findOutgoingMessage(transactionId);
         if (message != null) {
+            cancelTimeout(message);
             if (message.shouldAttemptResend()) {
                 Log.d(TAG, "resending data with transactionId " + message.getTransactionId());
-                PebbleKit.sendDataToPebbleWithTransactionId(
-                        context, uuid,
-                        message.getData(), message.getTransactionId());
+                dispatch(message);
             } else {
                 outbox.remove(message);
                 if (message.callbacks != null)
                     message.callbacks.onSendFailure();
-                flushOutbox();
+                onMessageFinished();
             }
         }
     }
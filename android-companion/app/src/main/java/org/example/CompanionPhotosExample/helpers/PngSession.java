@@ -0,0 +1,259 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Strips the fixed chunks (signature, IHDR, PLTE, tRNS and IEND) from
+ * encoded PNGs so that only the compressed image data is sent to the watch.
+ *
+ * Palettes are defined once per connection in numbered slots, which later
+ * images refer to by number. The watch rebuilds a full PNG from the payload
+ * and the palette slot (see png_session.c).
+ *
+ * Each photo gets its own optimized palette, so a slot is only reused when
+ * an image has exactly the same colors as a recent one: the same photo sent
+ * again, or photos of one scene. Most photos still define a new palette;
+ * what every image saves is the signature, IHDR and IEND chunks.
+ *
+ * Payload format (little-endian):
+ *
+ * - byte 0: PAYLOAD_MAGIC, which can't be confused with a PNG signature
+ * - bytes 1-2: width
+ * - bytes 3-4: height
+ * - byte 5: bit depth
+ * - byte 6: PNG color type
+ * - byte 7: palette slot, or NO_PALETTE
+ * - remaining bytes: zlib stream (the concatenated IDAT data)
+ *
+ * Should only be used from the service's handler thread.
+ */
+public class PngSession {
+    public static final byte PAYLOAD_MAGIC = 'S';
+    public static final int HEADER_SIZE = 8;
+    public static final int NO_PALETTE = 0xff;
+    public static final int MAX_PALETTES = 8;
+
+    // Palette definitions must fit in a single message
+    public static final int MAX_PALETTE_DEFINITION_SIZE = 100;
+
+    static final byte [] PNG_SIGNATURE = {
+            (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+    };
+
+    /**
+     * Chunks of interest from a PNG file.
+     */
+    public static class ParsedPng {
+        public int width;
+        public int height;
+        public int bitDepth;
+        public int colorType;
+        public byte [] palette;
+        public byte [] transparency;
+        public byte [] imageData;
+    }
+
+    /**
+     * Palette data that must be sent to the watch before the payload
+     * that refers to it.
+     */
+    public static class PaletteDefinition {
+        public final int slot;
+        public final byte [] palette;
+        public final byte [] transparency;
+
+        PaletteDefinition(int slot, byte [] palette, byte [] transparency) {
+            this.slot = slot;
+            this.palette = palette;
+            this.transparency = transparency;
+        }
+    }
+
+    public static class Encoded {
+        // Null if the watch already has the palette
+        public final PaletteDefinition paletteDefinition;
+        public final byte [] payload;
+
+        Encoded(PaletteDefinition paletteDefinition, byte [] payload) {
+            this.paletteDefinition = paletteDefinition;
+            this.payload = payload;
+        }
+    }
+
+    protected final long sessionId;
+
+    // Palette contents -> slot, in least-recently-used order
+    protected final LinkedHashMap<ByteBuffer, Integer> slots =
+            new LinkedHashMap<ByteBuffer, Integer>(MAX_PALETTES, 0.75f, true);
+
+    // Slots that the watch has acknowledged
+    protected final Set<Integer> confirmedSlots = new HashSet<Integer>();
+
+    protected long pngBytes = 0;
+    protected long sentBytes = 0;
+
+    /**
+     * @param sessionId ID chosen by the watch for this connection
+     */
+    public PngSession(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Convert an encoded PNG to a session payload.
+     *
+     * @param png Bytes of a non-interlaced PNG
+     * @return payload, or null if the image can't be sent in session mode
+     */
+    public Encoded encode(byte [] png) {
+        ParsedPng parsed = parse(png);
+
+        PaletteDefinition definition = null;
+        int slot = NO_PALETTE;
+
+        if (parsed.palette != null || parsed.transparency != null) {
+            byte [] palette = parsed.palette != null ? parsed.palette : new byte[0];
+            byte [] transparency = parsed.transparency != null ? parsed.transparency : new byte[0];
+
+            if (palette.length + transparency.length > MAX_PALETTE_DEFINITION_SIZE) {
+                return null;
+            }
+
+            slot = getSlot(palette, transparency);
+            if (!confirmedSlots.contains(slot)) {
+                definition = new PaletteDefinition(slot, palette, transparency);
+            }
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_SIZE + parsed.imageData.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        payload.put(PAYLOAD_MAGIC);
+        payload.putShort((short) parsed.width);
+        payload.putShort((short) parsed.height);
+        payload.put((byte) parsed.bitDepth);
+        payload.put((byte) parsed.colorType);
+        payload.put((byte) slot);
+        payload.put(parsed.imageData);
+
+        int definitionSize = definition != null
+                ? definition.palette.length + definition.transparency.length : 0;
+        pngBytes += png.length;
+        sentBytes += payload.capacity() + definitionSize;
+
+        return new Encoded(definition, payload.array());
+    }
+
+    /**
+     * Mark a palette slot as received by the watch. Until then, payloads
+     * referring to the slot will carry the palette definition again.
+     */
+    public void confirmPalette(int slot) {
+        confirmedSlots.add(slot);
+    }
+
+    protected int getSlot(byte [] palette, byte [] transparency) {
+        ByteBuffer key = ByteBuffer.allocate(palette.length + transparency.length + 1);
+        key.put(palette).put((byte) 0).put(transparency).flip();
+
+        Integer slot = slots.get(key);
+        if (slot != null) return slot;
+
+        if (slots.size() < MAX_PALETTES) {
+            slot = slots.size();
+        } else {
+            // Reuse the least recently used slot
+            Iterator<Map.Entry<ByteBuffer, Integer>> it = slots.entrySet().iterator();
+            slot = it.next().getValue();
+            it.remove();
+            confirmedSlots.remove(slot);
+        }
+
+        slots.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * @return total size of the PNGs passed to encode()
+     */
+    public long getPngBytes() {
+        return pngBytes;
+    }
+
+    /**
+     * @return total size of the payloads and palette definitions produced
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Extract the chunks used by session payloads from a PNG file.
+     */
+    public static ParsedPng parse(byte [] png) {
+        if (png.length < PNG_SIGNATURE.length
+                || !Arrays.equals(Arrays.copyOf(png, PNG_SIGNATURE.length), PNG_SIGNATURE)) {
+            throw new IllegalArgumentException("not a PNG");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(png);
+        buffer.position(PNG_SIGNATURE.length);
+
+        ParsedPng parsed = new ParsedPng();
+        ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+        boolean hasHeader = false;
+
+        while (buffer.remaining() >= 12) {
+            int length = buffer.getInt();
+            byte [] typeBytes = new byte[4];
+            buffer.get(typeBytes);
+            String type = new String(typeBytes);
+
+            if (length < 0 || length > buffer.remaining() - 4) {
+                throw new IllegalArgumentException("truncated " + type + " chunk");
+            }
+
+            byte [] data = new byte[length];
+            buffer.get(data);
+            buffer.getInt(); // CRC; the watch recomputes it
+
+            if ("IHDR".equals(type)) {
+                ByteBuffer header = ByteBuffer.wrap(data);
+                parsed.width = header.getInt();
+                parsed.height = header.getInt();
+                parsed.bitDepth = header.get() & 0xff;
+                parsed.colorType = header.get() & 0xff;
+                header.get(); // compression
+                header.get(); // filter
+                if (header.get() != 0) {
+                    throw new IllegalArgumentException("interlaced PNGs are not supported");
+                }
+                hasHeader = true;
+            } else if ("PLTE".equals(type)) {
+                parsed.palette = data;
+            } else if ("tRNS".equals(type)) {
+                parsed.transparency = data;
+            } else if ("IDAT".equals(type)) {
+                imageData.write(data, 0, data.length);
+            } else if ("IEND".equals(type)) {
+                break;
+            }
+        }
+
+        if (!hasHeader) throw new IllegalArgumentException("missing IHDR chunk");
+
+        parsed.imageData = imageData.toByteArray();
+        return parsed;
+    }
+}
@@ -1,9 +1,9 @@
 package org.example.CompanionPhotosExample.helpers;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.TreeMap;
 
 import ar.com.hjg.pngj.ImageInfo;
@@ -20,14 +20,39 @@ import ar.com.hjg.pngj.chunks.PngChunkTRNS;
  * TODO: threshold detection
  */
 public class SimpleImageEncoder {
+    /**
+     * Color space used to match pixels to the palette and diffuse errors.
+     * OKLAB picks better colors for skin tones and skies, so less
+     * dithering is needed.
+     */
+    public enum ColorSpace { RGB, OKLAB }
+
     int [] palette = getDefaultPalette();
 
+    // Pixels that will never be shown (e.g. outside a round display), or null
+    boolean [] visibleMask;
+
+    ColorSpace colorSpace = ColorSpace.RGB;
+
+    static final int BLACK = 0xff000000;
+
+    // Same as android.graphics.Color, so that the encoder doesn't depend on
+    // the Android framework except for reading bitmaps
+    static int alpha (int color) { return color >>> 24; }
+    static int red (int color) { return (color >> 16) & 0xff; }
+    static int green (int color) { return (color >> 8) & 0xff; }
+    static int blue (int color) { return color & 0xff; }
+    static int rgb (int red, int green, int blue) { return BLACK | (red << 16) | (green << 8) | blue; }
+    static int argb (int alpha, int red, int green, int blue) {
+        return (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+
     // Pebble 64-color palette
     public static int [] getDefaultPalette () {
         int [] palette = new int[64];
 
         for (int i = 0; i < 64; i++) {
-            palette[i] = Color.rgb(
+            palette[i] = rgb(
                     ((i >> 4) & 0x3) * 85,
                     ((i >> 2) & 0x3) * 85,
                     ((i >> 0) & 0x3) * 85
@@ -40,8 +65,30 @@ public class SimpleImageEncoder {
     public SimpleImageEncoder() {
     }
 
+    /**
+     * Encode a tiny image so that the PNG writer and deflater classes are
+     * loaded before the first real image is encoded.
+     */
+    public static void warmUp() {
+        OkLab.warmUp();
+
+        SimpleImageEncoder encoder = new SimpleImageEncoder();
+        encoder.encodeIndexedPNG(new int[4], 2, 2, true, 8);
+    }
+
     public void setPalette (int [] newPalette) { palette = newPalette; }
 
+    /**
+     * Set which pixels are visible on the watch. Hidden pixels are left out
+     * of palette selection and dithering and filled with a single color,
+     * so they cost almost nothing after compression.
+     *
+     * @param mask One entry per pixel, or null if all pixels are visible
+     */
+    public void setVisibleMask (boolean [] mask) { visibleMask = mask; }
+
+    public void setColorSpace (ColorSpace colorSpace) { this.colorSpace = colorSpace; }
+
     public int [] getPalette () {
         return palette;
     }
@@ -58,15 +105,17 @@ public class SimpleImageEncoder {
         boolean hasTransparent = false;
 
         for (int i = 0; i < data.length; i++) {
+            if (visibleMask != null && !visibleMask[i]) continue;
+
             int p = data[i];
 
-            if (Color.alpha(p) == 0 && allowTransparent) {
+            if (alpha(p) == 0 && allowTransparent) {
                 hasTransparent = true;
             }
 
-            int index = ((Color.red(p) / 85) << 4)
-                    | ((Color.green(p) / 85) << 2)
-                    | ((Color.blue(p) / 85) << 0);
+            int index = ((red(p) / 85) << 4)
+                    | ((green(p) / 85) << 2)
+                    | ((blue(p) / 85) << 0);
             counts[index]++;
         }
 
@@ -80,7 +129,7 @@ public class SimpleImageEncoder {
         int [] colors = new int[maxColors];
 
         if (hasTransparent) {
-            colors[0] = Color.argb(0, 255, 255, 255);
+            colors[0] = argb(0, 255, 255, 255);
             colorCount++;
         }
 
@@ -91,35 +140,47 @@ public class SimpleImageEncoder {
             if (colorCount >= maxColors) break;
         }
 
+        // Order by color rather than by count, so that photos using the same
+        // set of colors get identical palettes (see PngSession)
+        Arrays.sort(colors, hasTransparent ? 1 : 0, colorCount);
+
         palette = colors;
     }
 
     public static final double getColorDistance (int color, int pColor) {
-        float rd = Color.red(pColor) - Color.red(color);
-        float gd = Color.green(pColor) - Color.green(color);
-        float bd = Color.blue(pColor) - Color.blue(color);
+        return Math.sqrt(getSquaredColorDistance(color, pColor) / 256.0);
+    }
+
+    // Luma-weighted, with weights scaled to add up to 256. Squared distances
+    // compare the same way as distances, so there's no need for a square root.
+    static int getSquaredColorDistance (int color, int pColor) {
+        int rd = red(pColor) - red(color);
+        int gd = green(pColor) - green(color);
+        int bd = blue(pColor) - blue(color);
 
-        return Math.sqrt(0.2126*rd*rd + 0.7152*gd*gd + 0.0722*bd*bd);
+        return 54 * rd * rd + 183 * gd * gd + 19 * bd * bd;
     }
 
+    // Ties go to the first entry, here and in quantizeOkLab()
     public byte getNearestColorIndex (int color) {
+        final boolean hasTransparent = alpha(palette[0]) == 0;
         int bestIndex = 0;
-        double bestDistance = Double.MAX_VALUE;
+        int bestDistance = Integer.MAX_VALUE;
 
         // If the palette contains a transparent pixel in the first slot,
-        // use this for fully transparent pixels
-        if (Color.alpha(color) == 0 && Color.alpha(palette[0]) == 0) {
+        // use this for fully transparent pixels, and only for them
+        if (alpha(color) == 0 && hasTransparent) {
             return 0;
         }
 
         // This could be optimized
-        for (int i = 0; i < palette.length; i++) {
+        for (int i = hasTransparent ? 1 : 0; i < palette.length; i++) {
             int pColor = palette[i];
 
             if (color == pColor) return (byte) i;
 
-            double distance = getColorDistance(pColor, color);
-            if (distance <= bestDistance) {
+            int distance = getSquaredColorDistance(pColor, color);
+            if (distance < bestDistance) {
                 bestIndex = i;
                 bestDistance = distance;
             }
@@ -130,17 +191,28 @@ public class SimpleImageEncoder {
 
     // Dither image down to the current palette
     public void quantize (int [] pixels, int width) {
+        if (colorSpace == ColorSpace.OKLAB) {
+            quantizeOkLab(pixels, width);
+            return;
+        }
+
         final float[] errors = new float[] { 7f/16f, 3f/16f, 5f/16f, 1f/16f };
         final int[] offsets = new int[] { 1, width - 1, width, width + 1};
+        final int hiddenColor = palette[getNearestColorIndex(BLACK)];
 
         for (int i = 0; i < pixels.length; i++) {
+            if (visibleMask != null && !visibleMask[i]) {
+                pixels[i] = hiddenColor;
+                continue;
+            }
+
             int color = pixels[i];
             int nearestColorIndex = this.getNearestColorIndex(color);
             int nearestColor = this.palette[nearestColorIndex];
 
-            int rd = Color.red(color) - Color.red(nearestColor);
-            int gd = Color.green(color) - Color.green(nearestColor);
-            int bd = Color.blue(color) - Color.blue(nearestColor);
+            int rd = red(color) - red(nearestColor);
+            int gd = green(color) - green(nearestColor);
+            int bd = blue(color) - blue(nearestColor);
 
             pixels[i] = nearestColor;
 
@@ -148,17 +220,102 @@ public class SimpleImageEncoder {
             for (int j = 0; j < errors.length; j++) {
                 int offset = offsets[j];
                 if (i + offset >= pixels.length) break;
+                if (visibleMask != null && !visibleMask[i + offset]) continue;
                 int neighborPixel = pixels[i + offset];
 
-                int red = clamp(Color.red(neighborPixel) + errors[j] * rd);
-                int green = clamp(Color.green(neighborPixel) + errors[j] * gd);
-                int blue = clamp(Color.blue(neighborPixel) + errors[j] * bd);
+                int red = clamp(red(neighborPixel) + errors[j] * rd);
+                int green = clamp(green(neighborPixel) + errors[j] * gd);
+                int blue = clamp(blue(neighborPixel) + errors[j] * bd);
 
-                pixels[i + offset] = Color.rgb(red, green, blue);
+                pixels[i + offset] = rgb(red, green, blue);
             }
         }
     }
 
+    // Dither image down to the current palette, matching colors and
+    // diffusing errors in OKLab
+    void quantizeOkLab (int [] pixels, int width) {
+        final int hiddenColor = palette[getNearestColorIndex(BLACK)];
+        final boolean hasTransparent = alpha(palette[0]) == 0;
+
+        int [] paletteLab = new int[palette.length * 3];
+        int [] lab = new int[3];
+        for (int i = 0; i < palette.length; i++) {
+            OkLab.fromColor(palette[i], lab);
+            paletteLab[i * 3] = lab[0];
+            paletteLab[i * 3 + 1] = lab[1];
+            paletteLab[i * 3 + 2] = lab[2];
+        }
+
+        // Errors carried to this row and the next, with a pixel of padding
+        // on each side
+        int [] errors = new int[(width + 2) * 3];
+        int [] nextErrors = new int[(width + 2) * 3];
+
+        for (int rowStart = 0; rowStart < pixels.length; rowStart += width) {
+            int rowEnd = Math.min(rowStart + width, pixels.length);
+
+            for (int i = rowStart; i < rowEnd; i++) {
+                if (visibleMask != null && !visibleMask[i]) {
+                    pixels[i] = hiddenColor;
+                    continue;
+                }
+
+                int color = pixels[i];
+                if (hasTransparent && alpha(color) == 0) {
+                    pixels[i] = palette[0];
+                    continue;
+                }
+
+                int e = (i - rowStart + 1) * 3;
+                OkLab.fromColor(color, lab);
+                int l = clamp(lab[0] + errors[e], 0, OkLab.ONE);
+                int a = clamp(lab[1] + errors[e + 1], -OkLab.ONE / 2, OkLab.ONE / 2);
+                int b = clamp(lab[2] + errors[e + 2], -OkLab.ONE / 2, OkLab.ONE / 2);
+
+                int bestIndex = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int j = hasTransparent ? 1 : 0; j < palette.length; j++) {
+                    int ld = l - paletteLab[j * 3];
+                    int ad = a - paletteLab[j * 3 + 1];
+                    int bd = b - paletteLab[j * 3 + 2];
+
+                    int distance = ld * ld + ad * ad + bd * bd;
+                    if (distance < bestDistance) {
+                        bestIndex = j;
+                        bestDistance = distance;
+                    }
+                }
+
+                pixels[i] = palette[bestIndex];
+
+                diffuse(errors, nextErrors, e, l - paletteLab[bestIndex * 3]);
+                diffuse(errors, nextErrors, e + 1, a - paletteLab[bestIndex * 3 + 1]);
+                diffuse(errors, nextErrors, e + 2, b - paletteLab[bestIndex * 3 + 2]);
+            }
+
+            int [] swap = errors;
+            errors = nextErrors;
+            nextErrors = swap;
+            Arrays.fill(nextErrors, 0);
+        }
+    }
+
+    // Floyd-Steinberg: 7/16 right, 3/16 below left, 5/16 below, 1/16 below right.
+    // Only 7/8 of the error is passed on, which leaves flat areas less noisy
+    // and smaller after compression with little loss in accuracy.
+    private static void diffuse (int [] errors, int [] nextErrors, int e, int error) {
+        error = error * 7 / 8;
+        errors[e + 3] += error * 7 / 16;
+        nextErrors[e - 3] += error * 3 / 16;
+        nextErrors[e] += error * 5 / 16;
+        nextErrors[e + 3] += error / 16;
+    }
+
+    private static int clamp (int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
     /**
      * Encode an Android bitmap as an indexed PNG using Pebble Time colors.
      * Uses 16 colors for the best balance of quality and size.
@@ -180,6 +337,78 @@ public class SimpleImageEncoder {
      * @return Array of bytes in PNG format
      */
     public static byte [] encodeBitmapAsPNG (Bitmap bitmap, boolean color, int numColors, boolean allowTransparent) {
+        return encodeBitmapAsPNG(bitmap, color, numColors, allowTransparent, null);
+    }
+
+    /**
+     * Encode an Android bitmap as an indexed PNG using Pebble Time colors,
+     * skipping pixels that won't be visible on the watch.
+     * @param bitmap
+     * @param color Whether the image is color (true) or black-and-white
+     * @param numColors  Should be 2, 4, 16, or 64. Must be 2 if B&W.
+     * @param allowTransparent Allow fully transparent pixels
+     * @param visibleMask One entry per pixel, or null if all pixels are visible
+     * @return Array of bytes in PNG format
+     */
+    public static byte [] encodeBitmapAsPNG (Bitmap bitmap, boolean color, int numColors, boolean allowTransparent,
+                                             boolean [] visibleMask) {
+        return encodeBitmapAsPNG(bitmap, color, numColors, allowTransparent, visibleMask, ColorSpace.RGB);
+    }
+
+    /**
+     * Encode an Android bitmap as an indexed PNG using Pebble Time colors,
+     * skipping pixels that won't be visible on the watch.
+     * @param bitmap
+     * @param color Whether the image is color (true) or black-and-white
+     * @param numColors  Should be 2, 4, 16, or 64. Must be 2 if B&W.
+     * @param allowTransparent Allow fully transparent pixels
+     * @param visibleMask One entry per pixel, or null if all pixels are visible
+     * @param colorSpace Color space for matching colors and dithering
+     * @return Array of bytes in PNG format
+     */
+    public static byte [] encodeBitmapAsPNG (Bitmap bitmap, boolean color, int numColors, boolean allowTransparent,
+                                             boolean [] visibleMask, ColorSpace colorSpace) {
+        int [] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+
+        return encodePixelsAsPNG(pixels, bitmap.getWidth(), bitmap.getHeight(), color, numColors,
+                allowTransparent, visibleMask, colorSpace);
+    }
+
+    /**
+     * Encode ARGB pixels as an indexed PNG using Pebble Time colors. The
+     * pixels are dithered in place.
+     * @param pixels ARGB pixels, row by row
+     * @param width
+     * @param height
+     * @param color Whether the image is color (true) or black-and-white
+     * @param numColors  Should be 2, 4, 16, or 64. Must be 2 if B&W.
+     * @param allowTransparent Allow fully transparent pixels
+     * @param visibleMask One entry per pixel, or null if all pixels are visible
+     * @return Array of bytes in PNG format
+     */
+    public static byte [] encodePixelsAsPNG (int [] pixels, int width, int height, boolean color, int numColors,
+                                             boolean allowTransparent, boolean [] visibleMask) {
+        return encodePixelsAsPNG(pixels, width, height, color, numColors, allowTransparent, visibleMask,
+                ColorSpace.RGB);
+    }
+
+    /**
+     * Encode ARGB pixels as an indexed PNG using Pebble Time colors. The
+     * pixels are dithered in place.
+     * @param pixels ARGB pixels, row by row
+     * @param width
+     * @param height
+     * @param color Whether the image is color (true) or black-and-white
+     * @param numColors  Should be 2, 4, 16, or 64. Must be 2 if B&W.
+     * @param allowTransparent Allow fully transparent pixels
+     * @param visibleMask One entry per pixel, or null if all pixels are visible
+     * @param colorSpace Color space for matching colors and dithering
+     * @return Array of bytes in PNG format
+     */
+    public static byte [] encodePixelsAsPNG (int [] pixels, int width, int height, boolean color, int numColors,
+                                             boolean allowTransparent, boolean [] visibleMask,
+                                             ColorSpace colorSpace) {
         int bits;
 
         if (!color && numColors != 2) throw new IllegalArgumentException("must have 2 colors for black and white");
@@ -192,12 +421,11 @@ public class SimpleImageEncoder {
         else throw new IllegalArgumentException("maximum 64 colors");
 
         SimpleImageEncoder encoder = new SimpleImageEncoder();
-        int [] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
-
-        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        encoder.setVisibleMask(visibleMask);
+        encoder.setColorSpace(colorSpace);
         encoder.optimizePalette(pixels, numColors, allowTransparent);
 
-        return encoder.encodeIndexedPNG(pixels, bitmap.getWidth(), bitmap.getHeight(), color, bits);
+        return encoder.encodeIndexedPNG(pixels, width, height, color, bits);
     }
 
     public byte [] encodeIndexedPNG (int [] pixels, int width, int height, boolean color, int bits) {
@@ -207,7 +435,7 @@ public class SimpleImageEncoder {
 
         boolean grayscale = !color;
         boolean indexed = color;
-        boolean alpha = Color.alpha(palette[0]) == 0;
+        boolean alpha = alpha(palette[0]) == 0;
 
         ImageInfo imageInfo = new ImageInfo(width, height, bits, alpha, grayscale, indexed);
         PngWriter writer = new PngWriter(bos, imageInfo);
@@ -219,7 +447,7 @@ public class SimpleImageEncoder {
 
             for (int i = 0; i < palette.length; i++) {
                 int c = palette[i];
-                paletteChunk.setEntry(i, Color.red(c), Color.green(c), Color.blue(c));
+                paletteChunk.setEntry(i, red(c), green(c), blue(c));
             }
         }
 
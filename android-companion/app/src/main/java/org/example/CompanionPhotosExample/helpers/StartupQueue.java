@@ -0,0 +1,72 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds items that arrive before their consumer is set up, and hands them
+ * over in arrival order once it is. Items offered while the queue is being
+ * drained are delivered after the ones that arrived before them.
+ *
+ * Not thread-safe; CompanionService only uses it on the main thread.
+ */
+public class StartupQueue<T> {
+    public interface Consumer<T> {
+        public void accept(T item);
+    }
+
+    protected final Consumer<T> consumer;
+    protected final ArrayDeque<T> pending = new ArrayDeque<T>();
+    protected boolean open = false;
+    protected boolean draining = false;
+
+    public StartupQueue(Consumer<T> consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * Deliver an item, or keep it until open() if the consumer isn't ready.
+     */
+    public void offer(T item) {
+        pending.add(item);
+        if (open) drain();
+    }
+
+    /**
+     * Deliver the items kept so far, then deliver new items as they arrive.
+     */
+    public void open() {
+        open = true;
+        drain();
+    }
+
+    /**
+     * Stop delivering items and drop the ones that haven't been delivered.
+     *
+     * @return number of items dropped
+     */
+    public int close() {
+        open = false;
+        int dropped = pending.size();
+        pending.clear();
+        return dropped;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    protected void drain() {
+        // Items offered by the consumer itself are queued behind the rest
+        if (draining) return;
+
+        draining = true;
+        try {
+            T item;
+            while (open && (item = pending.poll()) != null) {
+                consumer.accept(item);
+            }
+        } finally {
+            draining = false;
+        }
+    }
+}
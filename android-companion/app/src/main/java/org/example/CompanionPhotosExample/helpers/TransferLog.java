@@ -0,0 +1,350 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import android.util.Log;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Append-only log of file transfers and their progress, so that transfers
+ * can be resumed from the last acknowledged offset if the service is killed.
+ *
+ * The log is a memory-mapped file: appending a record is a few writes to
+ * memory, which the OS persists even if the process dies. Once no transfers
+ * are pending the log is reset to empty; if it fills up, the pending
+ * transfers are copied to a fresh file.
+ *
+ * Record format (big-endian), terminated by a zero type byte:
+ *
+ * - START: type, transfer ID, file ID, number of preamble messages, then
+ *   the length and JSON of each preamble message, data length, data
+ * - PROGRESS: type, transfer ID, offset
+ * - DONE: type, transfer ID
+ *
+ * The type byte of each record is written last, so a record that was only
+ * partly written is ignored.
+ *
+ * Should only be used from the service's handler thread.
+ */
+public class TransferLog {
+    static final String TAG = TransferLog.class.getSimpleName();
+
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    static final int MAGIC = 0x50544c32; // "PTL2"
+    static final int HEADER_SIZE = 4;
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_START = 1;
+    static final byte RECORD_PROGRESS = 2;
+    static final byte RECORD_DONE = 3;
+
+    // Type, transfer and file IDs, preamble count and data length
+    static final int START_HEADER_SIZE = 17;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A transfer that hasn't finished yet.
+     */
+    public static class PendingTransfer {
+        public final int transferId;
+        public final int fileId;
+        public final byte [] bytes;
+        public final List<PebbleDictionary> preambles;
+        public int offset;
+
+        PendingTransfer(int transferId, int fileId, byte [] bytes, List<PebbleDictionary> preambles) {
+            this.transferId = transferId;
+            this.fileId = fileId;
+            this.bytes = bytes;
+            this.preambles = preambles;
+        }
+    }
+
+    protected final File file;
+    protected final int capacity;
+    protected MappedByteBuffer buffer;
+
+    protected final LinkedHashMap<Integer, PendingTransfer> pending =
+            new LinkedHashMap<Integer, PendingTransfer>();
+    protected int nextTransferId = 1;
+    protected boolean compacting = false;
+
+    public TransferLog(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Open a log, reading any transfers left pending by a previous run.
+     *
+     * @param file
+     * @param capacity Size of the memory-mapped file in bytes
+     */
+    public TransferLog(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+
+        buffer = map(file, capacity);
+
+        if (buffer.getInt(0) == MAGIC) {
+            readRecords();
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.put(HEADER_SIZE, RECORD_END);
+            buffer.position(HEADER_SIZE);
+        }
+    }
+
+    protected static MappedByteBuffer map(File file, int capacity) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            raf.close();
+        }
+    }
+
+    protected void readRecords() {
+        buffer.position(HEADER_SIZE);
+
+        try {
+            while (buffer.remaining() > 0) {
+                int start = buffer.position();
+                byte type = buffer.get();
+
+                if (type == RECORD_START) {
+                    int transferId = buffer.getInt();
+                    int fileId = buffer.getInt();
+                    int preambleCount = buffer.getInt();
+                    if (preambleCount < 0 || preambleCount > buffer.remaining()) {
+                        throw new IllegalStateException("invalid preamble count " + preambleCount);
+                    }
+
+                    ArrayList<PebbleDictionary> preambles = new ArrayList<PebbleDictionary>(preambleCount);
+                    for (int i = 0; i < preambleCount; i++) {
+                        preambles.add(PebbleDictionary.fromJson(new String(readBytes(), UTF8)));
+                    }
+                    byte [] bytes = readBytes();
+
+                    pending.put(transferId, new PendingTransfer(transferId, fileId, bytes, preambles));
+                    nextTransferId = Math.max(nextTransferId, transferId + 1);
+                } else if (type == RECORD_PROGRESS) {
+                    int transferId = buffer.getInt();
+                    int offset = buffer.getInt();
+
+                    PendingTransfer transfer = pending.get(transferId);
+                    if (transfer != null) transfer.offset = offset;
+                } else if (type == RECORD_DONE) {
+                    pending.remove(buffer.getInt());
+                } else {
+                    buffer.position(start);
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "corrupt transfer log; ignoring the rest", e);
+        } catch (JSONException e) {
+            Log.w(TAG, "corrupt transfer log; ignoring the rest", e);
+        }
+
+        Log.d(TAG, "found " + pending.size() + " pending transfers");
+
+        // Continue appending from a clean state
+        compact();
+    }
+
+    protected byte [] readBytes() {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalStateException("invalid record length " + length);
+        }
+
+        byte [] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return transfers left pending, in the order they were started
+     */
+    public List<PendingTransfer> getPendingTransfers() {
+        return new ArrayList<PendingTransfer>(pending.values());
+    }
+
+    /**
+     * Record the start of a transfer.
+     *
+     * @param fileId ID of the file on the watch
+     * @param bytes File contents
+     * @param preambles Messages to send before the first chunk, possibly none
+     * @return transfer ID, or -1 if the transfer is too large to log
+     */
+    public int startTransfer(int fileId, byte [] bytes, List<PebbleDictionary> preambles) {
+        if (buffer == null) return -1;
+
+        // Would never fit, even in an empty log; don't compact for nothing
+        if (START_HEADER_SIZE + bytes.length >= capacity - HEADER_SIZE) {
+            Log.w(TAG, "transfer of " + bytes.length + " bytes is too large to log");
+            return -1;
+        }
+
+        int transferId = nextTransferId++;
+        PendingTransfer transfer = new PendingTransfer(transferId, fileId, bytes, preambles);
+
+        if (!appendStart(transfer)) {
+            Log.w(TAG, "transfer of " + bytes.length + " bytes is too large to log");
+            return -1;
+        }
+
+        pending.put(transferId, transfer);
+        return transferId;
+    }
+
+    /**
+     * Record that the watch has acknowledged all bytes up to offset.
+     */
+    public void recordProgress(int transferId, int offset) {
+        PendingTransfer transfer = pending.get(transferId);
+        if (transfer == null) return;
+
+        transfer.offset = offset;
+
+        if (!ensureSpace(9)) return;
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putInt(transferId);
+        buffer.putInt(offset);
+        commit(start, RECORD_PROGRESS);
+    }
+
+    /**
+     * Record that a transfer has finished or been cancelled.
+     */
+    public void finishTransfer(int transferId) {
+        if (pending.remove(transferId) == null) return;
+
+        if (pending.isEmpty()) {
+            // Nothing left to resume; start over
+            reset();
+            return;
+        }
+
+        if (!ensureSpace(5)) return;
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putInt(transferId);
+        commit(start, RECORD_DONE);
+    }
+
+    /**
+     * Stop logging. Pending transfers stay in the file, to be resumed by
+     * the next TransferLog opened on it; the mapping is released once the
+     * buffer is garbage collected.
+     */
+    public void close() {
+        buffer = null;
+        pending.clear();
+    }
+
+    protected boolean appendStart(PendingTransfer transfer) {
+        byte [][] preambleBytes = new byte[transfer.preambles.size()][];
+        int size = START_HEADER_SIZE + transfer.bytes.length;
+        for (int i = 0; i < preambleBytes.length; i++) {
+            preambleBytes[i] = transfer.preambles.get(i).toJsonString().getBytes(UTF8);
+            size += 4 + preambleBytes[i].length;
+        }
+
+        if (!ensureSpace(size)) return false;
+
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putInt(transfer.transferId);
+        buffer.putInt(transfer.fileId);
+        buffer.putInt(preambleBytes.length);
+        for (byte [] bytes : preambleBytes) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.putInt(transfer.bytes.length);
+        buffer.put(transfer.bytes);
+        commit(start, RECORD_START);
+        return true;
+    }
+
+    // Terminate the log after the new record, then make the record visible
+    protected void commit(int start, byte type) {
+        int end = buffer.position();
+        if (end < capacity) buffer.put(end, RECORD_END);
+        buffer.put(start, type);
+    }
+
+    // Make sure a record of the given size (plus the end marker) fits
+    protected boolean ensureSpace(int size) {
+        if (buffer.remaining() > size) return true;
+        if (compacting) return false;
+
+        compact();
+        return buffer.remaining() > size;
+    }
+
+    protected void reset() {
+        buffer.put(HEADER_SIZE, RECORD_END);
+        buffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * Rewrite the log with only the pending transfers. The new log is
+     * written to a separate file and renamed over the old one, so the
+     * pending transfers survive if the process is killed during compaction.
+     */
+    protected void compact() {
+        if (pending.isEmpty()) {
+            reset();
+            return;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        MappedByteBuffer oldBuffer = buffer;
+        compacting = true;
+
+        try {
+            buffer = map(tempFile, capacity);
+            buffer.putInt(0, MAGIC);
+            buffer.position(HEADER_SIZE);
+            buffer.put(HEADER_SIZE, RECORD_END);
+
+            ArrayList<PendingTransfer> transfers = new ArrayList<PendingTransfer>(pending.values());
+            for (PendingTransfer transfer : transfers) {
+                if (!appendStart(transfer)) {
+                    Log.w(TAG, "dropping transfer " + transfer.transferId + " from full log");
+                    pending.remove(transfer.transferId);
+                    continue;
+                }
+                if (transfer.offset > 0) recordProgress(transfer.transferId, transfer.offset);
+            }
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("failed to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "failed to compact transfer log", e);
+            buffer = oldBuffer;
+        } finally {
+            compacting = false;
+        }
+    }
+}
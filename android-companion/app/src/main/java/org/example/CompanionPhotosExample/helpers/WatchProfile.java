@@ -0,0 +1,136 @@
+package org.example.CompanionPhotosExample.helpers;
+
+/**
+ * Describes the display and message limits of a watch, as reported by
+ * the watch app, so that images can be encoded for what the watch can
+ * actually show.
+ */
+public class WatchProfile {
+    // Original Pebble and Pebble Time
+    public static final int DEFAULT_WIDTH = 144;
+    public static final int DEFAULT_HEIGHT = 168;
+
+    public final int width;
+    public final int height;
+    public final boolean round;
+    public final boolean color;
+    public final int inboxSize;
+
+    /**
+     * @param width Screen width in pixels
+     * @param height Screen height in pixels
+     * @param round Whether the display is round, showing only the inscribed circle
+     * @param color Whether the display supports the 64-color palette
+     * @param inboxSize Size of the watch app's inbox, or 0 if unknown
+     */
+    public WatchProfile(int width, int height, boolean round, boolean color, int inboxSize) {
+        this.width = width;
+        this.height = height;
+        this.round = round;
+        this.color = color;
+        this.inboxSize = inboxSize;
+    }
+
+    /**
+     * @return string identifying this profile, for use in cache keys
+     */
+    public String getKey() {
+        return width + "x" + height + (round ? "-round" : "-rect") + (color ? "-color" : "-bw");
+    }
+
+    /**
+     * Companion app messages are limited to ~124 bytes on the phone side,
+     * so this only ever lowers the chunk size below the default.
+     *
+     * @return largest chunk of file data that fits in the watch's inbox
+     */
+    public int getChunkSize() {
+        if (inboxSize <= 0) return FileSender.DEFAULT_CHUNK_SIZE;
+        return Math.max(1, Math.min(FileSender.DEFAULT_CHUNK_SIZE, inboxSize - FileSender.MESSAGE_OVERHEAD));
+    }
+
+    /**
+     * Size to scale a photo to. On rectangular displays the photo fits
+     * within the screen; on round displays it covers the screen, since
+     * the parts outside the circle won't be shown anyway.
+     *
+     * @return scaled width and height, which may be larger than the screen
+     */
+    public int [] getScaledSize(int photoWidth, int photoHeight) {
+        float widthRatio = (float) width / photoWidth;
+        float heightRatio = (float) height / photoHeight;
+        float ratio = round ? Math.max(widthRatio, heightRatio) : Math.min(widthRatio, heightRatio);
+
+        return new int [] {
+                Math.max(1, (int) (photoWidth * ratio)),
+                Math.max(1, (int) (photoHeight * ratio))
+        };
+    }
+
+    /**
+     * Part of a photo scaled by getScaledSize() to keep: the center of the
+     * photo, cropped to the screen.
+     *
+     * @return left, top, width and height of the crop
+     */
+    public int [] getCropRect(int scaledWidth, int scaledHeight) {
+        int cropWidth = Math.min(scaledWidth, width);
+        int cropHeight = Math.min(scaledHeight, height);
+
+        return new int [] {
+                (scaledWidth - cropWidth) / 2,
+                (scaledHeight - cropHeight) / 2,
+                cropWidth,
+                cropHeight
+        };
+    }
+
+    /**
+     * @return width of the largest rectangle that is fully visible
+     */
+    public int getSafeWidth() {
+        return round ? (int) (width / Math.sqrt(2)) : width;
+    }
+
+    /**
+     * @return height of the largest rectangle that is fully visible
+     */
+    public int getSafeHeight() {
+        return round ? (int) (height / Math.sqrt(2)) : height;
+    }
+
+    /**
+     * Compute which pixels of an image centered on the screen are visible.
+     *
+     * @param imageWidth
+     * @param imageHeight
+     * @return mask with one entry per pixel, or null if every pixel is visible
+     */
+    public boolean [] getVisibleMask(int imageWidth, int imageHeight) {
+        if (!round) return null;
+
+        boolean [] mask = new boolean[imageWidth * imageHeight];
+        boolean anyHidden = false;
+
+        // Work in doubled coordinates to keep pixel centers integral
+        long radiusX = width;
+        long radiusY = height;
+        int left = (width - imageWidth) / 2;
+        int top = (height - imageHeight) / 2;
+
+        for (int y = 0; y < imageHeight; y++) {
+            long dy = 2 * (top + y) + 1 - height;
+            for (int x = 0; x < imageWidth; x++) {
+                long dx = 2 * (left + x) + 1 - width;
+
+                // Inside the ellipse (a circle on square screens)
+                boolean visible = dx * dx * radiusY * radiusY + dy * dy * radiusX * radiusX
+                        <= radiusX * radiusX * radiusY * radiusY;
+                mask[y * imageWidth + x] = visible;
+                anyHidden |= !visible;
+            }
+        }
+
+        return anyHidden ? mask : null;
+    }
+}
@@ -0,0 +1,62 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+
+/**
+ * Handler that keeps posted tasks until the test advances its clock.
+ */
+class FakeHandler extends Handler {
+    static class Task {
+        final Runnable runnable;
+        final long time;
+
+        Task(Runnable runnable, long time) {
+            this.runnable = runnable;
+            this.time = time;
+        }
+    }
+
+    final ArrayList<Task> tasks = new ArrayList<Task>();
+    long now = 0;
+
+    @Override
+    public boolean post(Runnable runnable) {
+        return postDelayed(runnable, 0);
+    }
+
+    @Override
+    public boolean postDelayed(Runnable runnable, long delayMillis) {
+        tasks.add(new Task(runnable, now + delayMillis));
+        return true;
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            if (tasks.get(i).runnable == runnable) tasks.remove(i);
+        }
+    }
+
+    /**
+     * Move the clock forward, running tasks as they become due.
+     */
+    void advance(long ms) {
+        long end = now + ms;
+
+        while (true) {
+            Task next = null;
+            for (Task task : tasks) {
+                if (task.time <= end && (next == null || task.time < next.time)) next = task;
+            }
+            if (next == null) break;
+
+            // Tasks that take time can leave the clock past a task that is due
+            tasks.remove(next);
+            now = Math.max(now, next.time);
+            next.runnable.run();
+        }
+        now = Math.max(now, end);
+    }
+}
@@ -0,0 +1,57 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyRecorderTest {
+    @Test
+    public void percentilesOfKnownSample() {
+        LatencyRecorder recorder = new LatencyRecorder();
+
+        // 1..100 in a scrambled order
+        for (int i = 0; i < 100; i++) {
+            recorder.record((i * 37) % 100 + 1);
+        }
+
+        assertEquals(50, recorder.getPercentile(50));
+        assertEquals(90, recorder.getPercentile(90));
+        assertEquals(99, recorder.getPercentile(99));
+        assertEquals(100, recorder.getPercentile(100));
+        assertEquals(100, recorder.getMax());
+        assertEquals(100, recorder.getTotalCount());
+    }
+
+    @Test
+    public void emptyRecorderReportsZero() {
+        LatencyRecorder recorder = new LatencyRecorder();
+
+        assertEquals(0, recorder.getPercentile(50));
+        assertEquals(0, recorder.getPercentile(99));
+        assertEquals(0, recorder.getMax());
+        assertEquals(0, recorder.getTotalCount());
+    }
+
+    @Test
+    public void singleSampleIsEveryPercentile() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        recorder.record(42);
+
+        assertEquals(42, recorder.getPercentile(0));
+        assertEquals(42, recorder.getPercentile(50));
+        assertEquals(42, recorder.getPercentile(99));
+    }
+
+    @Test
+    public void percentilesOnlyUseTheWindow() {
+        LatencyRecorder recorder = new LatencyRecorder(4);
+        recorder.record(1000);
+        for (int i = 0; i < 4; i++) {
+            recorder.record(10);
+        }
+
+        assertEquals(10, recorder.getPercentile(99));
+        assertEquals(1000, recorder.getMax());
+        assertEquals(5, recorder.getTotalCount());
+    }
+}
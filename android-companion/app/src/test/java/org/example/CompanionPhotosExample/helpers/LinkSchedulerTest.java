@@ -0,0 +1,170 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinkSchedulerTest {
+    // Names of the outboxes that transmitted, in order
+    final ArrayList<String> wire = new ArrayList<String>();
+    final ArrayList<Integer> sizes = new ArrayList<Integer>();
+
+    /**
+     * Outbox whose messages wait for ackNext() instead of a watch.
+     */
+    class FakeOutbox extends OutboxManager {
+        final String name;
+        final ArrayDeque<Integer> unacked = new ArrayDeque<Integer>();
+
+        FakeOutbox(String name) {
+            super(null, UUID.randomUUID());
+            this.name = name;
+        }
+
+        @Override
+        protected void transmit(OutgoingMessage message) {
+            wire.add(name);
+            sizes.add(message.getSize());
+            unacked.add(message.getTransactionId());
+        }
+
+        void ackNext() {
+            handleAck(unacked.poll());
+        }
+    }
+
+    class Results implements OutboxManager.OutgoingMessageCallbacks {
+        int sent;
+        int failed;
+
+        @Override
+        public void onSendSuccess() { sent++; }
+
+        @Override
+        public void onSendFailure() { failed++; }
+    }
+
+    static PebbleDictionary message(int bytes) {
+        PebbleDictionary data = new PebbleDictionary();
+        data.addBytes(1, new byte[bytes]);
+        return data;
+    }
+
+    // ACK every message as it is sent, until no outbox has anything left
+    static void deliverAcks(FakeOutbox... outboxes) {
+        boolean acked = true;
+        while (acked) {
+            acked = false;
+            for (FakeOutbox outbox : outboxes) {
+                if (!outbox.unacked.isEmpty()) {
+                    outbox.ackNext();
+                    acked = true;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bulkTransferDoesNotStarveSmallMessage() {
+        LinkScheduler scheduler = new LinkScheduler();
+        FakeOutbox bulk = new FakeOutbox("bulk");
+        FakeOutbox small = new FakeOutbox("small");
+        bulk.setScheduler(scheduler);
+        small.setScheduler(scheduler);
+
+        for (int i = 0; i < 20; i++) {
+            bulk.sendMessage(message(FileSender.DEFAULT_CHUNK_SIZE));
+        }
+        small.sendMessage(message(10));
+        deliverAcks(bulk, small);
+
+        assertEquals(21, wire.size());
+        assertTrue("small message sent at " + wire.indexOf("small"), wire.indexOf("small") <= 2);
+    }
+
+    @Test
+    public void deficitResetsWhenOutboxGoesIdle() {
+        LinkScheduler scheduler = new LinkScheduler();
+        FakeOutbox outbox = new FakeOutbox("a");
+        outbox.setScheduler(scheduler);
+
+        outbox.sendMessage(message(10));
+        assertTrue(scheduler.deficits.get(outbox) > 0);
+
+        deliverAcks(outbox);
+
+        assertFalse(scheduler.deficits.containsKey(outbox));
+        assertFalse(scheduler.active.contains(outbox));
+        assertTrue(scheduler.inFlight.isEmpty());
+    }
+
+    @Test
+    public void lostAckIsRetransmittedAfterTimeout() {
+        FakeHandler handler = new FakeHandler();
+        LinkScheduler scheduler = new LinkScheduler();
+        FakeOutbox outbox = new FakeOutbox("a");
+        outbox.setScheduler(scheduler);
+        outbox.setAckTimeout(handler, 1000);
+
+        Results results = new Results();
+        outbox.sendMessage(message(10), results);
+
+        handler.advance(999);
+        assertEquals(1, wire.size());
+
+        outbox.unacked.clear(); // the first ACK was lost
+        handler.advance(1);
+        assertEquals(Arrays.asList("a", "a"), wire);
+
+        outbox.ackNext();
+        assertEquals(1, results.sent);
+
+        // Nothing else should fire once the message is ACKed
+        handler.advance(10000);
+        assertEquals(2, wire.size());
+    }
+
+    @Test
+    public void unansweredMessageFailsAndFreesTheLink() {
+        FakeHandler handler = new FakeHandler();
+        LinkScheduler scheduler = new LinkScheduler();
+        FakeOutbox stuck = new FakeOutbox("stuck");
+        FakeOutbox other = new FakeOutbox("other");
+        stuck.setScheduler(scheduler);
+        other.setScheduler(scheduler);
+        stuck.setAckTimeout(handler, 1000);
+        other.setAckTimeout(handler, 1000);
+
+        Results results = new Results();
+        stuck.sendMessage(message(10), results);
+        other.sendMessage(message(10));
+        assertEquals(Arrays.asList("stuck"), wire);
+
+        // The first attempt and each retry time out
+        handler.advance(4000);
+
+        assertEquals(1, results.failed);
+        assertEquals(Arrays.asList("stuck", "stuck", "stuck", "stuck", "other"), wire);
+    }
+
+    @Test
+    public void quantumFitsOneFullChunk() {
+        FakeOutbox outbox = new FakeOutbox("a");
+        FileSender fileSender = new FileSender(outbox, new FileSender.MessageKeys(1, 2, 3, 4));
+
+        fileSender.sendFile(1, new byte[250], null);
+
+        assertEquals(137, FileSender.getMessageSize(FileSender.DEFAULT_CHUNK_SIZE));
+        assertEquals(FileSender.getMessageSize(FileSender.DEFAULT_CHUNK_SIZE), (int) sizes.get(0));
+        assertEquals(LinkScheduler.DEFAULT_QUANTUM, (int) sizes.get(0));
+    }
+}
@@ -0,0 +1,97 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoopMonitorTest {
+    static final long THRESHOLD_MS = 500;
+
+    // Runs both the loop and the watchdog, so a task that advances the
+    // clock lets the watchdog fire while it is still running
+    FakeHandler loop;
+    TestMonitor monitor;
+
+    class TestMonitor extends LoopMonitor {
+        final ArrayList<String> blocked = new ArrayList<String>();
+
+        TestMonitor() {
+            super(loop, loop);
+        }
+
+        @Override
+        protected long now() {
+            return loop.now;
+        }
+
+        @Override
+        protected void onBlocked(String taskType, long blockedMs) {
+            blocked.add(taskType + " " + blockedMs);
+        }
+    }
+
+    Runnable busyFor(final long ms) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                loop.advance(ms);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        loop = new FakeHandler();
+        monitor = new TestMonitor();
+        monitor.setBlockedThreshold(THRESHOLD_MS);
+        monitor.start();
+    }
+
+    @Test
+    public void taskPastThresholdIsReported() {
+        monitor.post("slow", busyFor(THRESHOLD_MS + 100));
+        loop.advance(0);
+
+        assertEquals(1, monitor.blocked.size());
+        assertEquals("slow " + THRESHOLD_MS, monitor.blocked.get(0));
+        assertEquals(THRESHOLD_MS + 100, monitor.getStats("slow").runTime.getMax());
+    }
+
+    @Test
+    public void taskUnderThresholdIsNotReported() {
+        monitor.post("fast", busyFor(THRESHOLD_MS - 1));
+        loop.advance(THRESHOLD_MS * 4);
+
+        assertTrue(monitor.blocked.isEmpty());
+        assertTrue(loop.tasks.isEmpty());
+    }
+
+    @Test
+    public void stoppedMonitorDoesNotReport() {
+        monitor.stop();
+        monitor.post("slow", busyFor(THRESHOLD_MS * 2));
+        loop.advance(0);
+
+        assertTrue(monitor.blocked.isEmpty());
+        assertEquals(1, monitor.getStats("slow").runTime.getTotalCount());
+    }
+
+    @Test
+    public void queueDelayIsRecorded() {
+        // Moves the clock without running the task queued behind it
+        monitor.post("first", new Runnable() {
+            @Override
+            public void run() {
+                loop.now += 200;
+            }
+        });
+        monitor.post("second", busyFor(0));
+        loop.advance(0);
+
+        assertEquals(200, monitor.getStats("second").queueDelay.getMax());
+    }
+}
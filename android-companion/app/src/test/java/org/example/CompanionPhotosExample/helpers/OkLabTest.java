@@ -0,0 +1,69 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OkLabTest {
+    // Largest error over all colors is about 0.0036, near black
+    static final double MAX_ERROR = 0.004;
+
+    static double [] exact(int color) {
+        double r = linear((color >> 16) & 0xff);
+        double g = linear((color >> 8) & 0xff);
+        double b = linear(color & 0xff);
+
+        double l = Math.cbrt(0.4122214708 * r + 0.5363325363 * g + 0.0514459929 * b);
+        double m = Math.cbrt(0.2119034982 * r + 0.6806995451 * g + 0.1073969566 * b);
+        double s = Math.cbrt(0.0883024619 * r + 0.2817188376 * g + 0.6299787005 * b);
+
+        return new double [] {
+                0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s,
+                1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s,
+                0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s
+        };
+    }
+
+    static double linear(int channel) {
+        double c = channel / 255.0;
+        return c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+    }
+
+    @Test
+    public void matchesExactConversionForEveryColor() {
+        int [] lab = new int[3];
+        double maxError = 0;
+        int worst = 0;
+
+        for (int color = 0; color <= 0xffffff; color++) {
+            OkLab.fromColor(color, lab);
+            double [] expected = exact(color);
+
+            double dl = (double) lab[0] / OkLab.ONE - expected[0];
+            double da = (double) lab[1] / OkLab.ONE - expected[1];
+            double db = (double) lab[2] / OkLab.ONE - expected[2];
+            double error = Math.sqrt(dl * dl + da * da + db * db);
+
+            if (error > maxError) {
+                maxError = error;
+                worst = color;
+            }
+        }
+
+        assertTrue("error " + maxError + " at " + Integer.toHexString(worst), maxError < MAX_ERROR);
+    }
+
+    @Test
+    public void blackAndWhite() {
+        int [] lab = new int[3];
+
+        OkLab.fromColor(0xff000000, lab);
+        assertEquals(0, lab[0]);
+
+        OkLab.fromColor(0xffffffff, lab);
+        assertTrue("white L " + lab[0], Math.abs(lab[0] - OkLab.ONE) <= 2);
+        assertTrue("white a " + lab[1], Math.abs(lab[1]) <= 2);
+        assertTrue("white b " + lab[2], Math.abs(lab[2]) <= 2);
+    }
+}
@@ -0,0 +1,124 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PngSessionTest {
+    static final int WIDTH = 144;
+    static final int HEIGHT = 168;
+
+    static final int [] SCENE_COLORS = {
+            0xff0055aa, 0xff55aaff, 0xffaaaaaa, 0xffffffff, 0xff005500, 0xff555500
+    };
+
+    // Photos of the same scene, with noise and a varying mix of its colors
+    static int [] scene(long seed) {
+        Random random = new Random(seed);
+        int shift = random.nextInt(HEIGHT / 2);
+        int [] pixels = new int[WIDTH * HEIGHT];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int band = ((y + shift) * SCENE_COLORS.length / (HEIGHT * 2)) % SCENE_COLORS.length;
+                if (random.nextInt(8) == 0) band = random.nextInt(SCENE_COLORS.length);
+                pixels[y * WIDTH + x] = SCENE_COLORS[band];
+            }
+        }
+        return pixels;
+    }
+
+    static byte [] encode(int [] pixels) {
+        return SimpleImageEncoder.encodePixelsAsPNG(pixels, WIDTH, HEIGHT, true, 16, false, null);
+    }
+
+    @Test
+    public void consecutivePhotosReusePaletteSlot() {
+        PngSession session = new PngSession(1);
+        int images = 6;
+        int definitions = 0;
+        long pngBytes = 0;
+
+        for (int i = 0; i < images; i++) {
+            byte [] png = encode(scene(i));
+            pngBytes += png.length;
+
+            PngSession.Encoded encoded = session.encode(png);
+            assertNotNull(encoded);
+
+            if (encoded.paletteDefinition != null) {
+                definitions++;
+                // The watch received the image along with the palette
+                session.confirmPalette(encoded.paletteDefinition.slot);
+            }
+        }
+
+        // Only the first photo needs to define the palette
+        assertEquals(1, definitions);
+        assertEquals(pngBytes, session.getPngBytes());
+
+        // Headers and palettes are sent once instead of with every photo
+        long savedPerImage = (session.getPngBytes() - session.getSentBytes()) / images;
+        assertTrue("saved " + savedPerImage + " bytes per image", savedPerImage > 60);
+    }
+
+    @Test
+    public void sameColorsInDifferentOrderShareSlot() {
+        int [] mostlyRed = new int[WIDTH * HEIGHT];
+        int [] mostlyBlue = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < mostlyRed.length; i++) {
+            boolean first = i < mostlyRed.length * 3 / 4;
+            mostlyRed[i] = first ? 0xffff0000 : 0xff0000ff;
+            mostlyBlue[i] = first ? 0xff0000ff : 0xffff0000;
+        }
+
+        PngSession session = new PngSession(1);
+        PngSession.Encoded red = session.encode(encode(mostlyRed));
+        session.confirmPalette(red.paletteDefinition.slot);
+
+        assertNull(session.encode(encode(mostlyBlue)).paletteDefinition);
+    }
+
+    @Test
+    public void unconfirmedPaletteIsDefinedAgain() {
+        PngSession session = new PngSession(1);
+
+        PngSession.Encoded first = session.encode(encode(scene(1)));
+        PngSession.Encoded second = session.encode(encode(scene(1)));
+
+        assertNotNull(second.paletteDefinition);
+        assertEquals(first.paletteDefinition.slot, second.paletteDefinition.slot);
+    }
+
+    @Test
+    public void leastRecentlyUsedPaletteIsReplaced() {
+        int [] palette = SimpleImageEncoder.getDefaultPalette();
+        PngSession session = new PngSession(1);
+
+        // Photos with different colors, so each needs a palette of its own.
+        // The two colors have different counts, so both make the palette.
+        byte [][] pngs = new byte[PngSession.MAX_PALETTES + 1][];
+        for (int i = 0; i < pngs.length; i++) {
+            int [] pixels = new int[WIDTH * HEIGHT];
+            for (int p = 0; p < pixels.length; p++) {
+                pixels[p] = p < pixels.length * 2 / 3 ? palette[i + 1] : palette[62 - i];
+            }
+            pngs[i] = encode(pixels);
+        }
+
+        for (byte [] png : pngs) {
+            PngSession.Encoded encoded = session.encode(png);
+            assertNotNull(encoded.paletteDefinition);
+            session.confirmPalette(encoded.paletteDefinition.slot);
+        }
+
+        // The first photo's slot went to the last one; the second's is still there
+        assertNull(session.encode(pngs[2]).paletteDefinition);
+        assertNotNull(session.encode(pngs[0]).paletteDefinition);
+    }
+}
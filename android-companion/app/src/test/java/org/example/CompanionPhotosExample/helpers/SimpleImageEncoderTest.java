@@ -0,0 +1,77 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SimpleImageEncoderTest {
+    static final int TRANSPARENT = 0x00ffffff;
+
+    static SimpleImageEncoder okLabEncoder(int [] palette) {
+        SimpleImageEncoder encoder = new SimpleImageEncoder();
+        encoder.setPalette(palette);
+        encoder.setColorSpace(SimpleImageEncoder.ColorSpace.OKLAB);
+        return encoder;
+    }
+
+    @Test
+    public void paletteColorsMapToThemselves() {
+        int [] palette = SimpleImageEncoder.getDefaultPalette();
+        SimpleImageEncoder encoder = okLabEncoder(palette);
+
+        int [] pixels = palette.clone();
+        encoder.quantize(pixels, 8);
+
+        assertArrayEquals(palette, pixels);
+    }
+
+    @Test
+    public void hiddenAndTransparentPixelsAreFilled() {
+        int [] palette = { TRANSPARENT, 0xff000000, 0xffaaaaaa, 0xffffffff };
+        SimpleImageEncoder encoder = okLabEncoder(palette);
+        encoder.setVisibleMask(new boolean [] { false, true, true, false });
+
+        int [] pixels = { 0xffffffff, 0x00123456, 0xffffffff, 0xffaaaaaa };
+        encoder.quantize(pixels, 2);
+
+        assertArrayEquals(new int [] { 0xff000000, TRANSPARENT, 0xffffffff, 0xff000000 }, pixels);
+    }
+
+    @Test
+    public void flatGreyUsesTheTwoNearestGreys() {
+        int [] palette = { 0xff000000, 0xff555555, 0xffaaaaaa, 0xffffffff };
+        SimpleImageEncoder encoder = okLabEncoder(palette);
+
+        int width = 32;
+        int [] pixels = new int[width * width];
+        Arrays.fill(pixels, 0xff808080);
+        encoder.quantize(pixels, width);
+
+        int light = 0;
+        for (int pixel : pixels) {
+            assertTrue(Integer.toHexString(pixel), pixel == 0xff555555 || pixel == 0xffaaaaaa);
+            if (pixel == 0xffaaaaaa) light++;
+        }
+
+        // Both greys are used, so the dithering isn't stuck on one of them
+        assertTrue("light pixels " + light, light > 0 && light < pixels.length);
+    }
+
+    @Test
+    public void opaqueColorsSkipTheTransparentSlot() {
+        int [] palette = { TRANSPARENT, 0xff000000, 0xffaaaaaa };
+        SimpleImageEncoder encoder = new SimpleImageEncoder();
+        encoder.setPalette(palette);
+
+        assertEquals(2, encoder.getNearestColorIndex(0xfff0f0f0));
+        assertEquals(0, encoder.getNearestColorIndex(0x00f0f0f0));
+
+        int [] pixels = { 0xfff0f0f0 };
+        okLabEncoder(palette).quantize(pixels, 1);
+        assertEquals(0xffaaaaaa, pixels[0]);
+    }
+}
@@ -0,0 +1,73 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StartupQueueTest {
+    final ArrayList<String> delivered = new ArrayList<String>();
+
+    final StartupQueue<String> queue = new StartupQueue<String>(new StartupQueue.Consumer<String>() {
+        @Override
+        public void accept(String item) {
+            delivered.add(item);
+        }
+    });
+
+    StartupQueue<String> reentrant;
+
+    @Test
+    public void keepsItemsUntilOpen() {
+        queue.offer("a");
+        queue.offer("b");
+        assertTrue(delivered.isEmpty());
+
+        queue.open();
+        assertEquals(Arrays.asList("a", "b"), delivered);
+    }
+
+    @Test
+    public void bufferedItemsComeBeforeLaterOnes() {
+        queue.offer("buffered 1");
+        queue.offer("buffered 2");
+        queue.open();
+        queue.offer("direct");
+
+        assertEquals(Arrays.asList("buffered 1", "buffered 2", "direct"), delivered);
+    }
+
+    @Test
+    public void itemsOfferedWhileDrainingWaitTheirTurn() {
+        reentrant = new StartupQueue<String>(new StartupQueue.Consumer<String>() {
+            @Override
+            public void accept(String item) {
+                delivered.add(item);
+                // e.g. a broadcast arriving while the buffer is replayed
+                if (item.equals("a")) reentrant.offer("c");
+            }
+        });
+
+        reentrant.offer("a");
+        reentrant.offer("b");
+        reentrant.open();
+
+        assertEquals(Arrays.asList("a", "b", "c"), delivered);
+    }
+
+    @Test
+    public void closeDropsPendingItems() {
+        queue.offer("a");
+        queue.offer("b");
+
+        assertEquals(2, queue.close());
+        assertFalse(queue.isOpen());
+
+        queue.open();
+        assertTrue(delivered.isEmpty());
+    }
+}
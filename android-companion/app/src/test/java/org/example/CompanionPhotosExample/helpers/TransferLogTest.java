@@ -0,0 +1,214 @@
+package org.example.CompanionPhotosExample.helpers;
+
+import com.getpebble.android.kit.util.PebbleDictionary;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferLogTest {
+    static final List<PebbleDictionary> NO_PREAMBLES = Collections.emptyList();
+
+    File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("transfers", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    static byte [] bytes(int length, int seed) {
+        byte [] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed + i);
+        }
+        return bytes;
+    }
+
+    static PebbleDictionary preamble(int key, int value) {
+        PebbleDictionary data = new PebbleDictionary();
+        data.addUint8(key, (byte) value);
+        data.addBytes(key + 1, bytes(8, value));
+        return data;
+    }
+
+    TransferLog reopen(TransferLog log, int capacity) throws IOException {
+        log.close();
+        return new TransferLog(file, capacity);
+    }
+
+    @Test
+    public void resumesOffsetsAndPreambles() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        List<PebbleDictionary> preambles = Arrays.asList(preamble(10, 1), preamble(20, 2));
+
+        int first = log.startTransfer(7, bytes(300, 0), preambles);
+        int second = log.startTransfer(8, bytes(50, 1), NO_PREAMBLES);
+        log.recordProgress(first, 100);
+        log.recordProgress(first, 200);
+
+        List<TransferLog.PendingTransfer> pending = reopen(log, 4096).getPendingTransfers();
+
+        assertEquals(2, pending.size());
+        TransferLog.PendingTransfer resumed = pending.get(0);
+        assertEquals(first, resumed.transferId);
+        assertEquals(7, resumed.fileId);
+        assertEquals(200, resumed.offset);
+        assertArrayEquals(bytes(300, 0), resumed.bytes);
+
+        assertEquals(2, resumed.preambles.size());
+        for (int i = 0; i < preambles.size(); i++) {
+            assertEquals(preambles.get(i).toJsonString(), resumed.preambles.get(i).toJsonString());
+        }
+
+        assertEquals(second, pending.get(1).transferId);
+        assertEquals(0, pending.get(1).offset);
+        assertTrue(pending.get(1).preambles.isEmpty());
+    }
+
+    @Test
+    public void ignoresUncommittedRecord() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        int first = log.startTransfer(7, bytes(100, 0), NO_PREAMBLES);
+
+        // Killed after writing a record but before its type byte
+        int start = log.buffer.position();
+        log.startTransfer(8, bytes(100, 1), NO_PREAMBLES);
+        log.recordProgress(first, 50);
+        log.buffer.put(start, TransferLog.RECORD_END);
+
+        List<TransferLog.PendingTransfer> pending = reopen(log, 4096).getPendingTransfers();
+
+        assertEquals(1, pending.size());
+        assertEquals(first, pending.get(0).transferId);
+        // Records after the torn one are ignored too
+        assertEquals(0, pending.get(0).offset);
+    }
+
+    @Test
+    public void ignoresRecordWithInvalidLength() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        int first = log.startTransfer(7, bytes(100, 0), NO_PREAMBLES);
+        log.recordProgress(first, 50);
+
+        int start = log.buffer.position();
+        log.startTransfer(8, bytes(100, 1), NO_PREAMBLES);
+        // Preamble count, as if the record were truncated or overwritten
+        log.buffer.putInt(start + 9, Integer.MAX_VALUE);
+
+        TransferLog reopened = reopen(log, 4096);
+        List<TransferLog.PendingTransfer> pending = reopened.getPendingTransfers();
+
+        assertEquals(1, pending.size());
+        assertEquals(50, pending.get(0).offset);
+
+        // The log is usable again after the corrupt record
+        int next = reopened.startTransfer(9, bytes(10, 2), NO_PREAMBLES);
+        assertEquals(2, reopen(reopened, 4096).getPendingTransfers().size());
+        assertTrue(next > first);
+    }
+
+    @Test
+    public void finishedTransfersAreNotResumed() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        int first = log.startTransfer(7, bytes(100, 0), NO_PREAMBLES);
+        int second = log.startTransfer(8, bytes(100, 1), NO_PREAMBLES);
+        log.finishTransfer(first);
+
+        List<TransferLog.PendingTransfer> pending = reopen(log, 4096).getPendingTransfers();
+        assertEquals(1, pending.size());
+        assertEquals(second, pending.get(0).transferId);
+    }
+
+    @Test
+    public void cancelledTransfersAreNotResumed() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        OutboxManager outbox = new OutboxManager(null, null) {
+            @Override
+            protected void transmit(OutgoingMessage message) {
+            }
+        };
+        FileSender fileSender = new FileSender(outbox, new FileSender.MessageKeys(1, 2, 3, 4));
+        fileSender.setTransferLog(log);
+
+        fileSender.sendFile(7, bytes(300, 0), null);
+        fileSender.sendFile(8, bytes(300, 1), null);
+        fileSender.cancelTransfers();
+
+        assertTrue(reopen(log, 4096).getPendingTransfers().isEmpty());
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingTransfers() throws IOException {
+        TransferLog log = new TransferLog(file, 2048);
+        int kept = log.startTransfer(1, bytes(200, 0), Arrays.asList(preamble(10, 1)));
+        log.recordProgress(kept, 100);
+
+        // Several times the log's capacity in finished transfers
+        for (int i = 0; i < 40; i++) {
+            int transferId = log.startTransfer(100 + i, bytes(200, i), NO_PREAMBLES);
+            assertTrue(transferId >= 0);
+            log.recordProgress(transferId, 100);
+            log.finishTransfer(transferId);
+        }
+        log.recordProgress(kept, 150);
+
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        List<TransferLog.PendingTransfer> pending = reopen(log, 2048).getPendingTransfers();
+        assertEquals(1, pending.size());
+        assertEquals(kept, pending.get(0).transferId);
+        assertEquals(150, pending.get(0).offset);
+        assertEquals(1, pending.get(0).preambles.size());
+        assertArrayEquals(bytes(200, 0), pending.get(0).bytes);
+    }
+
+    @Test
+    public void oversizedTransferIsNotLogged() throws IOException {
+        TransferLog log = new TransferLog(file, 1024);
+        int small = log.startTransfer(1, bytes(100, 0), NO_PREAMBLES);
+
+        assertEquals(-1, log.startTransfer(2, bytes(1024, 1), NO_PREAMBLES));
+        assertEquals(-1, log.startTransfer(3, bytes(1000, 2), Arrays.asList(preamble(10, 1))));
+
+        // Smaller transfers are still logged
+        int next = log.startTransfer(4, bytes(100, 3), NO_PREAMBLES);
+        assertTrue(next >= 0);
+
+        List<TransferLog.PendingTransfer> pending = reopen(log, 1024).getPendingTransfers();
+        assertEquals(2, pending.size());
+        assertEquals(small, pending.get(0).transferId);
+        assertEquals(next, pending.get(1).transferId);
+    }
+
+    @Test
+    public void closedLogKeepsPendingTransfersOnDisk() throws IOException {
+        TransferLog log = new TransferLog(file, 4096);
+        int transferId = log.startTransfer(7, bytes(100, 0), NO_PREAMBLES);
+        log.close();
+
+        // Ignored once closed
+        assertEquals(-1, log.startTransfer(8, bytes(100, 1), NO_PREAMBLES));
+        log.finishTransfer(transferId);
+
+        List<TransferLog.PendingTransfer> pending = new TransferLog(file, 4096).getPendingTransfers();
+        assertEquals(1, pending.size());
+        assertEquals(transferId, pending.get(0).transferId);
+    }
+}
@@ -0,0 +1,43 @@
+package org.example.CompanionPhotosExample;
+
+import org.example.CompanionPhotosExample.helpers.OutboxManager;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Outbox that hands messages to a fake watch instead of PebbleKit. The
+ * watch ACKs every message as soon as deliverAcks() is called, so the
+ * benchmarks measure the phone's own cost of chunking and bookkeeping
+ * rather than Bluetooth latency.
+ */
+public class FakeWatchOutbox extends OutboxManager {
+    final ArrayDeque<Integer> pendingAcks = new ArrayDeque<Integer>();
+
+    long messageCount;
+    long byteCount;
+
+    public FakeWatchOutbox() {
+        super(null, UUID.randomUUID());
+    }
+
+    @Override
+    protected void transmit(OutgoingMessage message) {
+        messageCount++;
+        byteCount += message.getSize();
+        pendingAcks.add(message.getTransactionId());
+    }
+
+    /**
+     * ACK messages until the outbox is empty, including any messages
+     * queued in response to an ACK.
+     */
+    public void deliverAcks() {
+        while (!pendingAcks.isEmpty()) {
+            handleAck(pendingAcks.poll());
+        }
+    }
+
+    public long getMessageCount() { return messageCount; }
+    public long getByteCount() { return byteCount; }
+}
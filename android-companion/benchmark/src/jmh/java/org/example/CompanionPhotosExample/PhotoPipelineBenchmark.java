@@ -0,0 +1,295 @@
+package org.example.CompanionPhotosExample;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import org.example.CompanionPhotosExample.helpers.FileSender;
+import org.example.CompanionPhotosExample.helpers.LinkScheduler;
+import org.example.CompanionPhotosExample.helpers.OutboxManager;
+import org.example.CompanionPhotosExample.helpers.SimpleImageEncoder;
+import org.example.CompanionPhotosExample.helpers.TransferLog;
+import org.example.CompanionPhotosExample.helpers.WatchProfile;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages of handling RANDOM_PHOTO_COMMAND in ExamplePhotoService, from
+ * picking a photo until the last chunk is ACKed, run over TestCorpus.
+ *
+ * - select: pick a random photo, as ExamplePhotoService does once the
+ *   PhotoIndex has loaded, from a library of LIBRARY_SIZE photos
+ * - selectTiles: pick the photos for a contact sheet the same way
+ * - downscale: scale and crop the thumbnail to the screen
+ * - encode: dither and encode the full-quality PNG
+ * - send: chunk the PNG through FileSender, logging progress in a
+ *   TransferLog, and OutboxManager, with the LinkScheduler and ACK
+ *   timeouts used by CompanionService
+ * - endToEnd: all of the above for a photo that wasn't prefetched,
+ *   including the progressive preview sent ahead of the full image
+ *
+ * Latency is sampled so that percentiles are reported. Run with the gc
+ * profiler for allocation rates; the wire benchmark reports bytes and
+ * messages sent per image.
+ *
+ * Downscaling is done by Skia on Android, so this uses an equivalent
+ * nearest-neighbor scaler and its timing is only indicative. Selection
+ * before the index has loaded queries the MediaStore, which can't run
+ * here. Nor can prefetching, which happens between requests: a prefetched
+ * photo skips every stage but send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PhotoPipelineBenchmark {
+    static final int ID_KEY = 47000;
+    static final int BYTES_KEY = 47001;
+    static final int TOTAL_SIZE_KEY = 47002;
+    static final int OFFSET_KEY = 47003;
+
+    // A typical phone's photo library
+    static final int LIBRARY_SIZE = 5000;
+
+    // ExamplePhotoService.MAX_TILES
+    static final int MAX_TILES = 12;
+
+    // ExamplePhotoService.PREVIEW_ID_FLAG
+    static final int PREVIEW_ID_FLAG = 0x80000000;
+
+    @Param({"rect", "round"})
+    public String screen;
+
+    @Param({"true", "false"})
+    public boolean color;
+
+    @Param({"RGB", "OKLAB"})
+    public SimpleImageEncoder.ColorSpace colorSpace;
+
+    /**
+     * Photo scaled and cropped for the screen.
+     */
+    static class Scaled {
+        final int id;
+        final int [] pixels;
+        final int width;
+        final int height;
+
+        Scaled(int id, int [] pixels, int width, int height) {
+            this.id = id;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Totals for the wire benchmark; divide by images for per-image values.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireCounters {
+        public long images;
+        public long messages;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            images = 0;
+            messages = 0;
+            bytes = 0;
+        }
+    }
+
+    TestCorpus corpus;
+    PhotoIndex photoIndex;
+    PhotoIndex libraryIndex;
+    WatchProfile profile;
+
+    // Inputs for each stage, so stages can be measured separately
+    Scaled [] scaled;
+    byte [][] pngs;
+
+    FakeWatchOutbox outbox;
+    FileSender fileSender;
+    File transferLogFile;
+    TransferLog transferLog;
+
+    int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        corpus = new TestCorpus();
+
+        photoIndex = new PhotoIndex(null);
+        photoIndex.ids = corpus.getIds();
+        photoIndex.loadTime = SystemClock.uptimeMillis();
+
+        libraryIndex = new PhotoIndex(null);
+        libraryIndex.ids = new int[LIBRARY_SIZE];
+        for (int i = 0; i < LIBRARY_SIZE; i++) {
+            libraryIndex.ids[i] = i + 1;
+        }
+        libraryIndex.loadTime = photoIndex.loadTime;
+        SimpleImageEncoder.warmUp();
+
+        profile = "round".equals(screen)
+                ? new WatchProfile(180, 180, true, color, 0)
+                : new WatchProfile(WatchProfile.DEFAULT_WIDTH, WatchProfile.DEFAULT_HEIGHT, false, color, 0);
+
+        scaled = new Scaled[corpus.size()];
+        pngs = new byte[corpus.size()][];
+        for (int i = 0; i < corpus.size(); i++) {
+            scaled[i] = scale(corpus.get(i));
+            pngs[i] = encode(scaled[i]);
+        }
+
+        // Set up like CompanionService and ExamplePhotoService
+        LinkScheduler linkScheduler = new LinkScheduler();
+        linkScheduler.setQuantum(FileSender.getMessageSize(profile.getChunkSize()));
+
+        outbox = new FakeWatchOutbox();
+        outbox.setScheduler(linkScheduler);
+        outbox.setAckTimeout(new Handler(), OutboxManager.DEFAULT_ACK_TIMEOUT_MS);
+
+        transferLogFile = File.createTempFile("transfers", ".log");
+        transferLog = new TransferLog(transferLogFile);
+
+        fileSender = new FileSender(outbox,
+                new FileSender.MessageKeys(ID_KEY, BYTES_KEY, TOTAL_SIZE_KEY, OFFSET_KEY));
+        fileSender.setChunkSize(profile.getChunkSize());
+        fileSender.setTransferLog(transferLog);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        transferLog.close();
+        transferLogFile.delete();
+    }
+
+    int nextIndex() {
+        next = (next + 1) % corpus.size();
+        return next;
+    }
+
+    Scaled scale(TestCorpus.Image image) {
+        int [] size = profile.getScaledSize(image.width, image.height);
+
+        // Crop to the center, like ExamplePhotoService.loadPhoto
+        int [] crop = profile.getCropRect(size[0], size[1]);
+        int left = crop[0];
+        int top = crop[1];
+        int width = crop[2];
+        int height = crop[3];
+
+        int [] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int sourceY = (top + y) * image.height / size[1];
+            for (int x = 0; x < width; x++) {
+                int sourceX = (left + x) * image.width / size[0];
+                pixels[y * width + x] = image.pixels[sourceY * image.width + sourceX];
+            }
+        }
+
+        return new Scaled(image.id, pixels, width, height);
+    }
+
+    byte [] encode(Scaled photo) {
+        // Pixels are dithered in place, so encode a copy as getPixels() would
+        return SimpleImageEncoder.encodePixelsAsPNG(photo.pixels.clone(), photo.width, photo.height,
+                profile.color, profile.color ? 16 : 2, false,
+                profile.getVisibleMask(photo.width, photo.height), colorSpace);
+    }
+
+    /**
+     * Half-size preview, like ExamplePhotoService.ProgressiveTransfer.
+     */
+    byte [] encodePreview(Scaled photo) {
+        int width = Math.max(1, photo.width / 2);
+        int height = Math.max(1, photo.height / 2);
+
+        int [] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = photo.pixels[(y * photo.height / height) * photo.width
+                        + x * photo.width / width];
+            }
+        }
+
+        return SimpleImageEncoder.encodePixelsAsPNG(pixels, width, height,
+                profile.color, profile.color ? 4 : 2, false,
+                profile.getVisibleMask(width, height), colorSpace);
+    }
+
+    void send(int id, byte [] png) {
+        fileSender.sendFile(id, png, null);
+        outbox.deliverAcks();
+    }
+
+    @Benchmark
+    public int select() {
+        return libraryIndex.getRandomIds(1)[0];
+    }
+
+    @Benchmark
+    public int [] selectTiles() {
+        return libraryIndex.getRandomIds(MAX_TILES);
+    }
+
+    @Benchmark
+    public Object downscale() {
+        return scale(corpus.get(nextIndex()));
+    }
+
+    @Benchmark
+    public byte [] encode() {
+        return encode(scaled[nextIndex()]);
+    }
+
+    @Benchmark
+    public long send() {
+        int index = nextIndex();
+        send(scaled[index].id, pngs[index]);
+        return outbox.getMessageCount();
+    }
+
+    @Benchmark
+    public long endToEnd() {
+        int id = photoIndex.getRandomIds(1)[0];
+        Scaled photo = scale(corpus.get(id - 1));
+        send(id | PREVIEW_ID_FLAG, encodePreview(photo));
+        send(id, encode(photo));
+        return outbox.getMessageCount();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void wire(WireCounters counters) {
+        int index = nextIndex();
+        long messages = outbox.getMessageCount();
+        long bytes = outbox.getByteCount();
+
+        send(scaled[index].id, pngs[index]);
+
+        counters.images++;
+        counters.messages += outbox.getMessageCount() - messages;
+        counters.bytes += outbox.getByteCount() - bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package org.example.CompanionPhotosExample;
+
+import java.util.Random;
+
+/**
+ * Fixed set of synthetic photos, generated from a constant seed so that
+ * every run encodes exactly the same pixels. The images are the size of
+ * MINI_KIND thumbnails and cover the cases that matter to the encoder:
+ * smooth gradients, skin tones, fine detail and flat colors.
+ */
+public class TestCorpus {
+    static final long SEED = 0x5eed;
+
+    static final int THUMBNAIL_WIDTH = 512;
+    static final int THUMBNAIL_HEIGHT = 384;
+
+    /**
+     * ARGB pixels of one photo, row by row.
+     */
+    public static class Image {
+        public final int id;
+        public final int [] pixels;
+        public final int width;
+        public final int height;
+
+        Image(int id, int [] pixels, int width, int height) {
+            this.id = id;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    final Image [] images;
+
+    public TestCorpus() {
+        Random random = new Random(SEED);
+        images = new Image[8];
+
+        for (int i = 0; i < images.length; i++) {
+            // Alternate landscape and portrait
+            boolean landscape = i % 2 == 0;
+            int width = landscape ? THUMBNAIL_WIDTH : THUMBNAIL_HEIGHT;
+            int height = landscape ? THUMBNAIL_HEIGHT : THUMBNAIL_WIDTH;
+            int [] pixels = new int[width * height];
+
+            switch ((i / 2) % 4) {
+                case 0: drawSky(pixels, width, height, random); break;
+                case 1: drawPortrait(pixels, width, height, random); break;
+                case 2: drawFoliage(pixels, width, height, random); break;
+                default: drawGraphic(pixels, width, height, random); break;
+            }
+
+            images[i] = new Image(i + 1, pixels, width, height);
+        }
+    }
+
+    public int size() {
+        return images.length;
+    }
+
+    public Image get(int index) {
+        return images[index];
+    }
+
+    /**
+     * @return photo IDs, as they would be listed by the media store
+     */
+    public int [] getIds() {
+        int [] ids = new int[images.length];
+        for (int i = 0; i < images.length; i++) {
+            ids[i] = images[i].id;
+        }
+        return ids;
+    }
+
+    static int rgb(int red, int green, int blue) {
+        return 0xff000000 | (clamp(red) << 16) | (clamp(green) << 8) | clamp(blue);
+    }
+
+    static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    // Blue to pale horizon with a little sensor noise
+    static void drawSky(int [] pixels, int width, int height, Random random) {
+        for (int y = 0; y < height; y++) {
+            int t = y * 255 / height;
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(7) - 3;
+                pixels[y * width + x] = rgb(70 + t * 2 / 3 + noise, 130 + t / 3 + noise, 220 + t / 8 + noise);
+            }
+        }
+    }
+
+    // Lit face-like ellipse on a dark background
+    static void drawPortrait(int [] pixels, int width, int height, Random random) {
+        int centerX = width / 2;
+        int centerY = height * 2 / 5;
+        int radius = Math.min(width, height) / 3;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int dx = x - centerX;
+                int dy = (y - centerY) * 3 / 4;
+                int distance = (int) Math.sqrt(dx * dx + dy * dy);
+                int noise = random.nextInt(5) - 2;
+
+                if (distance < radius) {
+                    int shade = 40 * distance / radius;
+                    pixels[y * width + x] = rgb(230 - shade + noise, 180 - shade + noise, 150 - shade + noise);
+                } else {
+                    pixels[y * width + x] = rgb(40 + noise, 35 + noise, 45 + noise);
+                }
+            }
+        }
+    }
+
+    // High-frequency detail, the worst case for compression
+    static void drawFoliage(int [] pixels, int width, int height, Random random) {
+        for (int i = 0; i < pixels.length; i++) {
+            int light = random.nextInt(160);
+            pixels[i] = rgb(light / 3, 60 + light, light / 4);
+        }
+    }
+
+    // Flat blocks of color, the best case
+    static void drawGraphic(int [] pixels, int width, int height, Random random) {
+        int block = 64;
+        int [] colors = new int[(width / block + 1) * (height / block + 1)];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+        }
+
+        int columns = width / block + 1;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = colors[(y / block) * columns + x / block];
+            }
+        }
+    }
+}
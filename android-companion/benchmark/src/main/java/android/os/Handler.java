@@ -0,0 +1,30 @@
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Stand-in for the Android handler, which only exists as a stub outside
+ * of Android. Tasks are kept until removed but never run: the benchmarks
+ * only use it for ACK timeouts, which the fake watch always beats.
+ */
+public class Handler {
+    final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+
+    public Handler() {
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        tasks.add(r);
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            if (tasks.get(i) == r) tasks.remove(i);
+        }
+    }
+}
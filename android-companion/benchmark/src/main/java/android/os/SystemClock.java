@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Stand-in for the Android clock, which only exists as a stub outside
+ * of Android.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,19 @@
+package android.util;
+
+/**
+ * Stand-in for the Android logger, which only exists as a stub outside
+ * of Android. Messages are discarded, so benchmarks still pay for
+ * building them but not for writing them anywhere.
+ */
+public final class Log {
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) { return 0; }
+    public static int d(String tag, String msg) { return 0; }
+    public static int i(String tag, String msg) { return 0; }
+    public static int w(String tag, String msg) { return 0; }
+    public static int w(String tag, String msg, Throwable tr) { return 0; }
+    public static int e(String tag, String msg) { return 0; }
+    public static int e(String tag, String msg, Throwable tr) { return 0; }
+}
@@ -75,6 +75,14 @@ void filereceiver_handle_message(FileReceiver *receiver, DictionaryIterator *ite
   switch (receiver->state) {
     case EXPECTING_SIZE:
     {
+      // A chunk from the middle of a file we never started (for example, a
+      // transfer resumed by the phone after we were restarted); ignore it
+      Tuple *start_offset_tuple = dict_find(iter, keys->offset_key);
+      if (start_offset_tuple && start_offset_tuple->type == TUPLE_UINT
+          && start_offset_tuple->value->uint16 != 0) {
+        return;
+      }
+
       Tuple *total_size_tuple = dict_find(iter, keys->size_key);
       if (total_size_tuple && total_size_tuple->type == TUPLE_UINT) {
         uint16_t size = total_size_tuple->value->uint16;
@@ -102,7 +110,17 @@ void filereceiver_handle_message(FileReceiver *receiver, DictionaryIterator *ite
       // we're writing to the right position
       Tuple *offset_tuple = dict_find(iter, keys->offset_key);
       if (offset_tuple && offset_tuple->type == TUPLE_UINT) {
-        if (offset_tuple->value->uint16 != receiver->pos) {
+        uint16_t offset = offset_tuple->value->uint16;
+        if (offset != receiver->pos) {
+          // The chunk we just received, sent again because its ACK was lost
+          // (for example, by a transfer resumed from the phone's log); it
+          // only needs to be ACKed again
+          Tuple *chunk_tuple = dict_find(iter, keys->bytes_key);
+          if (chunk_tuple && chunk_tuple->type == TUPLE_BYTE_ARRAY
+              && offset + chunk_tuple->length == receiver->pos) {
+            return;
+          }
+
           error_code = FILERECEIVER_ERROR_INVALID_OFFSET;
           goto error;
         }
@@ -5,6 +5,7 @@
 
 #include <pebble.h>
 #include "file_receiver.h"
+#include "png_session.h"
 
 #ifdef PBL_PLATFORM_APLITE
 #include "png.h"
@@ -12,13 +13,38 @@
 
 #define COMMAND_KEY 0
 #define COLOR_KEY 1
+#define COUNT_KEY 2
+#define PHOTO_ID_KEY 3
+#define SESSION_KEY 4
+#define SCREEN_WIDTH_KEY 5
+#define SCREEN_HEIGHT_KEY 6
+#define SCREEN_ROUND_KEY 7
+#define INBOX_SIZE_KEY 8
 
 #define ID_KEY 47000
 #define BYTES_KEY 47001
 #define TOTAL_SIZE_KEY 47002
 #define OFFSET_KEY 47003
 
+#define TILE_IDS_KEY 47010
+#define TILE_COLUMNS_KEY 47011
+#define TILE_WIDTH_KEY 47012
+#define TILE_HEIGHT_KEY 47013
+
+#define PALETTE_SLOT_KEY 47020
+#define PALETTE_KEY 47021
+#define PALETTE_TRNS_KEY 47022
+
 #define RANDOM_PHOTO_COMMAND 0
+#define CONTACT_SHEET_COMMAND 1
+#define PHOTO_BY_ID_COMMAND 2
+
+#define MAX_TILES 12
+
+// Set on the file ID of low-fidelity previews; the full image follows.
+// Previews are half size and are shown centered at that size, since
+// bitmap layers can't scale images.
+#define PREVIEW_ID_FLAG 0x80000000
 
 FileReceiver *s_filereceiver;
 
@@ -26,6 +52,20 @@ static Window *s_window;
 static BitmapLayer *s_bitmap_layer;
 static GBitmap *s_current_bitmap;
 static TextLayer *s_status_text_layer;
+static Layer *s_selection_layer;
+
+// Describes the tiles of the contact sheet being shown (if any)
+typedef struct ContactSheet {
+  uint32_t ids[MAX_TILES];
+  uint8_t count;
+  uint8_t columns;
+  uint8_t tile_width;
+  uint8_t tile_height;
+  uint8_t selected;
+  bool active;
+} ContactSheet;
+
+static ContactSheet s_sheet;
 
 #define MAX_STATUS_TEXT_LENGTH 255
 
@@ -40,25 +80,105 @@ static void set_status(const char *text) {
   }
 }
 
-static void load_image() {
-  APP_LOG(APP_LOG_LEVEL_INFO, "sending load random image command");
+static void set_sheet_active(bool active) {
+  s_sheet.active = active;
+  layer_mark_dirty(s_selection_layer);
+}
 
+static void send_command(uint8_t command, uint32_t photo_id) {
   filereceiver_reset(s_filereceiver);
+  set_sheet_active(false);
 
   DictionaryIterator *outbox;
   app_message_outbox_begin(&outbox);
-  dict_write_uint8(outbox, COMMAND_KEY, RANDOM_PHOTO_COMMAND);
+  dict_write_uint8(outbox, COMMAND_KEY, command);
 #ifdef PBL_COLOR
     dict_write_uint8(outbox, COLOR_KEY, 1);
 #else
     dict_write_uint8(outbox, COLOR_KEY, 0);
 #endif
+  dict_write_uint32(outbox, SESSION_KEY, png_session_get_id());
+
+  // Describe the display so the phone only encodes visible pixels
+  GRect bounds = layer_get_bounds(window_get_root_layer(s_window));
+  dict_write_uint16(outbox, SCREEN_WIDTH_KEY, bounds.size.w);
+  dict_write_uint16(outbox, SCREEN_HEIGHT_KEY, bounds.size.h);
+#ifdef PBL_ROUND
+  dict_write_uint8(outbox, SCREEN_ROUND_KEY, 1);
+#else
+  dict_write_uint8(outbox, SCREEN_ROUND_KEY, 0);
+#endif
+  dict_write_uint32(outbox, INBOX_SIZE_KEY, app_message_inbox_size_maximum());
+
+  if (command == CONTACT_SHEET_COMMAND) {
+    dict_write_uint8(outbox, COUNT_KEY, MAX_TILES);
+  } else if (command == PHOTO_BY_ID_COMMAND) {
+    dict_write_uint32(outbox, PHOTO_ID_KEY, photo_id);
+  }
   app_message_outbox_send();
 
   app_comm_set_sniff_interval(SNIFF_INTERVAL_REDUCED);
   set_status("Loading");
 }
 
+static void load_image() {
+  APP_LOG(APP_LOG_LEVEL_INFO, "sending load random image command");
+  send_command(RANDOM_PHOTO_COMMAND, 0);
+}
+
+static void load_contact_sheet() {
+  APP_LOG(APP_LOG_LEVEL_INFO, "sending load contact sheet command");
+  send_command(CONTACT_SHEET_COMMAND, 0);
+}
+
+static void load_selected_tile() {
+  uint32_t photo_id = s_sheet.ids[s_sheet.selected];
+  APP_LOG(APP_LOG_LEVEL_INFO, "sending load photo command for id %lu", photo_id);
+  send_command(PHOTO_BY_ID_COMMAND, photo_id);
+}
+
+static void handle_sheet_info(DictionaryIterator *iter, Tuple *ids_tuple) {
+  Tuple *columns_tuple = dict_find(iter, TILE_COLUMNS_KEY);
+  Tuple *width_tuple = dict_find(iter, TILE_WIDTH_KEY);
+  Tuple *height_tuple = dict_find(iter, TILE_HEIGHT_KEY);
+
+  if (!columns_tuple || !width_tuple || !height_tuple || columns_tuple->value->uint8 == 0) {
+    return;
+  }
+
+  uint8_t count = ids_tuple->length / sizeof(uint32_t);
+  if (count > MAX_TILES) count = MAX_TILES;
+
+  memcpy(s_sheet.ids, ids_tuple->value->data, count * sizeof(uint32_t));
+  s_sheet.count = count;
+  s_sheet.columns = columns_tuple->value->uint8;
+  s_sheet.tile_width = width_tuple->value->uint8;
+  s_sheet.tile_height = height_tuple->value->uint8;
+  s_sheet.selected = 0;
+
+  set_sheet_active(count > 0);
+}
+
+static void selection_layer_update(Layer *layer, GContext *ctx) {
+  if (!s_sheet.active || !s_current_bitmap) return;
+
+  // The bitmap layer centers the sheet image
+  GRect bounds = layer_get_bounds(layer);
+  int rows = (s_sheet.count + s_sheet.columns - 1) / s_sheet.columns;
+  int origin_x = (bounds.size.w - s_sheet.columns * s_sheet.tile_width) / 2;
+  int origin_y = (bounds.size.h - rows * s_sheet.tile_height) / 2;
+
+  GRect tile = GRect(
+    origin_x + (s_sheet.selected % s_sheet.columns) * s_sheet.tile_width,
+    origin_y + (s_sheet.selected / s_sheet.columns) * s_sheet.tile_height,
+    s_sheet.tile_width, s_sheet.tile_height);
+
+  graphics_context_set_stroke_color(ctx, GColorWhite);
+  graphics_draw_rect(ctx, tile);
+  graphics_context_set_stroke_color(ctx, GColorBlack);
+  graphics_draw_rect(ctx, grect_crop(tile, 1));
+}
+
 static void clear_image() {
   if (s_current_bitmap) {
     bitmap_layer_set_bitmap(s_bitmap_layer, NULL);
@@ -74,6 +194,7 @@ static void image_loaded(GBitmap *bitmap) {
 
   bitmap_layer_set_bitmap(s_bitmap_layer, bitmap);
   s_current_bitmap = bitmap;
+  layer_mark_dirty(s_selection_layer);
 
   set_status(NULL);
 }
@@ -91,16 +212,37 @@ static void handle_download_error(int error) {
 }
 
 static void handle_image_received(uint32_t image_id, unsigned char *data, size_t size) {
-  app_comm_set_sniff_interval(SNIFF_INTERVAL_NORMAL);
+  // Keep the connection fast if the full image is still on its way
+  if (!(image_id & PREVIEW_ID_FLAG)) {
+    app_comm_set_sniff_interval(SNIFF_INTERVAL_NORMAL);
+  }
+
+  unsigned char *png = data;
+  size_t png_size = size;
+
+  // Session payloads only have the image data; add back the PNG headers
+  if (png_session_is_payload(data, size)) {
+    png = png_session_rebuild(data, size, &png_size);
+    if (!png) {
+      handle_download_error(FILERECEIVER_ERROR_INVALID_STATE);
+      return;
+    }
+  }
 
 #ifdef PBL_PLATFORM_APLITE
   // Take over ownership of the data pointer
-  filereceiver_disown_data(s_filereceiver, data);
+  if (png == data) {
+    filereceiver_disown_data(s_filereceiver, data);
+  }
 
-  // Use upng decoder (this will free the data buffer)
-  GBitmap *bitmap = gbitmap_create_with_png_data(data, size);
+  // Use upng decoder (this will free the png buffer)
+  GBitmap *bitmap = gbitmap_create_with_png_data(png, png_size);
 #else
-  GBitmap *bitmap = gbitmap_create_from_png_data(data, size);
+  GBitmap *bitmap = gbitmap_create_from_png_data(png, png_size);
+
+  if (png != data) {
+    free(png);
+  }
 #endif
 
   if (!bitmap) return;
@@ -115,10 +257,46 @@ static void single_click_handler(ClickRecognizerRef recognizer, void *context) {
   load_image();
 }
 
+static void select_click_handler(ClickRecognizerRef recognizer, void *context) {
+  if (s_sheet.active) {
+    clear_image();
+    load_selected_tile();
+  } else {
+    single_click_handler(recognizer, context);
+  }
+}
+
+static void select_long_click_handler(ClickRecognizerRef recognizer, void *context) {
+  clear_image();
+  load_contact_sheet();
+}
+
+static void move_selection(int delta) {
+  s_sheet.selected = (s_sheet.selected + s_sheet.count + delta) % s_sheet.count;
+  layer_mark_dirty(s_selection_layer);
+}
+
+static void up_click_handler(ClickRecognizerRef recognizer, void *context) {
+  if (s_sheet.active) {
+    move_selection(-1);
+  } else {
+    single_click_handler(recognizer, context);
+  }
+}
+
+static void down_click_handler(ClickRecognizerRef recognizer, void *context) {
+  if (s_sheet.active) {
+    move_selection(1);
+  } else {
+    single_click_handler(recognizer, context);
+  }
+}
+
 static void click_config_provider(void *context) {
-  window_single_click_subscribe(BUTTON_ID_SELECT, single_click_handler);
-  window_single_click_subscribe(BUTTON_ID_UP, single_click_handler);
-  window_single_click_subscribe(BUTTON_ID_DOWN, single_click_handler);
+  window_single_click_subscribe(BUTTON_ID_SELECT, select_click_handler);
+  window_long_click_subscribe(BUTTON_ID_SELECT, 0, select_long_click_handler, NULL);
+  window_single_click_subscribe(BUTTON_ID_UP, up_click_handler);
+  window_single_click_subscribe(BUTTON_ID_DOWN, down_click_handler);
 }
 
 static void window_load() {
@@ -128,7 +306,11 @@ static void window_load() {
   s_bitmap_layer = bitmap_layer_create(bounds);
   layer_add_child(window_layer, bitmap_layer_get_layer(s_bitmap_layer));
 
-  s_status_text_layer = text_layer_create(GRect(0, 70, 144, 30));
+  s_selection_layer = layer_create(bounds);
+  layer_set_update_proc(s_selection_layer, selection_layer_update);
+  layer_add_child(window_layer, s_selection_layer);
+
+  s_status_text_layer = text_layer_create(GRect(0, bounds.size.h / 2 - 14, bounds.size.w, 30));
   text_layer_set_font(s_status_text_layer, fonts_get_system_font(FONT_KEY_GOTHIC_18_BOLD));
   text_layer_set_text_alignment(s_status_text_layer, GTextAlignmentCenter);
   text_layer_set_text(s_status_text_layer, "Waiting");
@@ -141,11 +323,34 @@ static void window_unload() {
   // FIXME cleanup
 }
 
+static void handle_palette(DictionaryIterator *iter, Tuple *slot_tuple) {
+  Tuple *plte_tuple = dict_find(iter, PALETTE_KEY);
+  Tuple *trns_tuple = dict_find(iter, PALETTE_TRNS_KEY);
+
+  png_session_set_palette(slot_tuple->value->uint8,
+    plte_tuple ? plte_tuple->value->data : NULL, plte_tuple ? plte_tuple->length : 0,
+    trns_tuple ? trns_tuple->value->data : NULL, trns_tuple ? trns_tuple->length : 0);
+}
+
 static void handle_incoming_message(DictionaryIterator *iter, void *context) {
+  Tuple *slot_tuple = dict_find(iter, PALETTE_SLOT_KEY);
+  if (slot_tuple) {
+    handle_palette(iter, slot_tuple);
+    return;
+  }
+
+  Tuple *ids_tuple = dict_find(iter, TILE_IDS_KEY);
+  if (ids_tuple && ids_tuple->type == TUPLE_BYTE_ARRAY) {
+    handle_sheet_info(iter, ids_tuple);
+    return;
+  }
+
   filereceiver_handle_message(s_filereceiver, iter);
 }
 
 static void init() {
+  png_session_init();
+
   s_window = window_create();
 
   window_set_click_config_provider(s_window, click_config_provider);
@@ -176,6 +381,7 @@ static void init() {
 
 static void deinit() {
   window_destroy(s_window);
+  png_session_deinit();
 }
 
 int main(void) {
@@ -0,0 +1,160 @@
+/*
+ * This file is licensed under the Creative Commons Zero License 1.0
+ * Feel free to do what you want with it.
+ */
+
+#include "png_session.h"
+
+// See PngSession.java for the payload format
+#define HEADER_SIZE 8
+
+// Length, type and CRC
+#define CHUNK_OVERHEAD 12
+
+#define IHDR_SIZE 13
+
+typedef struct PaletteSlot {
+  uint8_t *plte;
+  uint16_t plte_size;
+  uint8_t *trns;
+  uint16_t trns_size;
+} PaletteSlot;
+
+static uint32_t s_session_id;
+static PaletteSlot s_palettes[PNG_SESSION_MAX_PALETTES];
+
+static const uint8_t PNG_SIGNATURE[] = { 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+void png_session_init(void) {
+  srand(time(NULL));
+  do {
+    s_session_id = (uint32_t) rand();
+  } while (s_session_id == 0);
+}
+
+static void free_slot(PaletteSlot *slot) {
+  free(slot->plte);
+  free(slot->trns);
+  memset(slot, 0, sizeof(PaletteSlot));
+}
+
+void png_session_deinit(void) {
+  for (int i = 0; i < PNG_SESSION_MAX_PALETTES; i++) {
+    free_slot(&s_palettes[i]);
+  }
+}
+
+uint32_t png_session_get_id(void) {
+  return s_session_id;
+}
+
+static uint8_t *copy_bytes(const uint8_t *data, uint16_t size) {
+  if (!data || size == 0) return NULL;
+
+  uint8_t *copy = malloc(size);
+  if (copy) memcpy(copy, data, size);
+  return copy;
+}
+
+void png_session_set_palette(uint8_t slot, const uint8_t *plte, uint16_t plte_size,
+                             const uint8_t *trns, uint16_t trns_size) {
+  if (slot >= PNG_SESSION_MAX_PALETTES) return;
+
+  PaletteSlot *palette = &s_palettes[slot];
+  free_slot(palette);
+
+  palette->plte = copy_bytes(plte, plte_size);
+  palette->plte_size = palette->plte ? plte_size : 0;
+  palette->trns = copy_bytes(trns, trns_size);
+  palette->trns_size = palette->trns ? trns_size : 0;
+}
+
+bool png_session_is_payload(const uint8_t *data, size_t size) {
+  return size > HEADER_SIZE && data[0] == PNG_SESSION_MAGIC;
+}
+
+static uint32_t crc32_update(uint32_t crc, const uint8_t *data, size_t length) {
+  for (size_t i = 0; i < length; i++) {
+    crc ^= data[i];
+    for (int k = 0; k < 8; k++) {
+      crc = (crc >> 1) ^ (0xEDB88320 & -(crc & 1));
+    }
+  }
+  return crc;
+}
+
+static void write_u32_be(uint8_t *out, uint32_t value) {
+  out[0] = value >> 24;
+  out[1] = value >> 16;
+  out[2] = value >> 8;
+  out[3] = value;
+}
+
+static uint8_t *write_chunk(uint8_t *out, const char *type, const uint8_t *data, uint32_t length) {
+  write_u32_be(out, length);
+  memcpy(out + 4, type, 4);
+  if (length) memcpy(out + 8, data, length);
+
+  uint32_t crc = crc32_update(0xFFFFFFFF, out + 4, length + 4) ^ 0xFFFFFFFF;
+  write_u32_be(out + 8 + length, crc);
+
+  return out + CHUNK_OVERHEAD + length;
+}
+
+uint8_t *png_session_rebuild(const uint8_t *data, size_t size, size_t *png_size) {
+  if (!png_session_is_payload(data, size)) return NULL;
+
+  uint16_t width = data[1] | (data[2] << 8);
+  uint16_t height = data[3] | (data[4] << 8);
+  uint8_t bit_depth = data[5];
+  uint8_t color_type = data[6];
+  uint8_t slot = data[7];
+
+  PaletteSlot *palette = NULL;
+  if (slot != PNG_SESSION_NO_PALETTE) {
+    if (slot >= PNG_SESSION_MAX_PALETTES) return NULL;
+
+    palette = &s_palettes[slot];
+    if (!palette->plte && !palette->trns) {
+      APP_LOG(APP_LOG_LEVEL_WARNING, "missing palette %d", slot);
+      return NULL;
+    }
+  }
+
+  const uint8_t *image_data = data + HEADER_SIZE;
+  size_t image_size = size - HEADER_SIZE;
+
+  size_t total = sizeof(PNG_SIGNATURE)
+      + CHUNK_OVERHEAD + IHDR_SIZE
+      + CHUNK_OVERHEAD + image_size
+      + CHUNK_OVERHEAD;
+
+  if (palette && palette->plte) total += CHUNK_OVERHEAD + palette->plte_size;
+  if (palette && palette->trns) total += CHUNK_OVERHEAD + palette->trns_size;
+
+  uint8_t *png = malloc(total);
+  if (!png) return NULL;
+
+  uint8_t *out = png;
+  memcpy(out, PNG_SIGNATURE, sizeof(PNG_SIGNATURE));
+  out += sizeof(PNG_SIGNATURE);
+
+  uint8_t ihdr[IHDR_SIZE];
+  write_u32_be(ihdr, width);
+  write_u32_be(ihdr + 4, height);
+  ihdr[8] = bit_depth;
+  ihdr[9] = color_type;
+  ihdr[10] = 0; // compression
+  ihdr[11] = 0; // filter
+  ihdr[12] = 0; // interlace
+  out = write_chunk(out, "IHDR", ihdr, IHDR_SIZE);
+
+  if (palette && palette->plte) out = write_chunk(out, "PLTE", palette->plte, palette->plte_size);
+  if (palette && palette->trns) out = write_chunk(out, "tRNS", palette->trns, palette->trns_size);
+
+  out = write_chunk(out, "IDAT", image_data, image_size);
+  out = write_chunk(out, "IEND", NULL, 0);
+
+  *png_size = total;
+  return png;
+}
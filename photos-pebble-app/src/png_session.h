@@ -0,0 +1,30 @@
+/*
+ * This file is licensed under the Creative Commons Zero License 1.0
+ * Feel free to do what you want with it.
+ */
+
+#pragma once
+
+#include <pebble.h>
+
+// Session payloads start with this byte instead of the PNG signature
+#define PNG_SESSION_MAGIC 'S'
+
+#define PNG_SESSION_MAX_PALETTES 8
+#define PNG_SESSION_NO_PALETTE 0xff
+
+// Pick a new session ID. The phone forgets all palettes when the ID changes.
+void png_session_init(void);
+void png_session_deinit(void);
+
+uint32_t png_session_get_id(void);
+
+// Store a palette (PLTE and optional tRNS chunk data) sent by the phone
+void png_session_set_palette(uint8_t slot, const uint8_t *plte, uint16_t plte_size,
+                             const uint8_t *trns, uint16_t trns_size);
+
+bool png_session_is_payload(const uint8_t *data, size_t size);
+
+// Rebuild a complete PNG file from a session payload. Returns a malloc'd
+// buffer that the caller must free, or NULL on error.
+uint8_t *png_session_rebuild(const uint8_t *data, size_t size, size_t *png_size);